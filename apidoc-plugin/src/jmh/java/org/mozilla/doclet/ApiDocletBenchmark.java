@@ -0,0 +1,185 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.doclet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.lang.model.SourceVersion;
+import javax.tools.DocumentationTool;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import jdk.javadoc.doclet.Doclet;
+import jdk.javadoc.doclet.DocletEnvironment;
+import jdk.javadoc.doclet.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs javadoc in-process with {@link ApiDoclet} on a {@link SyntheticSourceTree}.
+ *
+ * <p>Each benchmark is one phase of generating the API file. {@link #frontend} only parses and
+ * attributes the sources, so that the time spent in the doclet itself is the difference with the
+ * other benchmarks. Run with {@code ./gradlew :apidoc-plugin:jmh}, which also reports the
+ * allocation rate of every benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ApiDocletBenchmark {
+  @Param("8")
+  public int packages;
+
+  @Param("20")
+  public int classes;
+
+  @Param("4")
+  public int depth;
+
+  @Param("3")
+  public int genericNesting;
+
+  private Path mRoot;
+  private Path mSources;
+  private List<Path> mSourceFiles;
+  private Path mCacheDir;
+
+  /** A doclet that does nothing, to measure the javadoc front end alone. */
+  public static class NoOpDoclet implements Doclet {
+    @Override
+    public void init(Locale locale, Reporter reporter) {}
+
+    @Override
+    public String getName() {
+      return "no-op";
+    }
+
+    @Override
+    public Set<? extends Option> getSupportedOptions() {
+      return Set.of();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latest();
+    }
+
+    @Override
+    public boolean run(DocletEnvironment environment) {
+      return true;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mRoot = Files.createTempDirectory("apidoc-benchmark");
+    mSources = mRoot.resolve("src");
+    mSourceFiles =
+        new SyntheticSourceTree(packages, classes, depth, genericNesting).write(mSources);
+
+    // Filled once, so that generateCached only measures reading the cache
+    mCacheDir = mRoot.resolve("cache");
+    generate(List.of("-cache-dir", mCacheDir.toString()));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    delete(mRoot);
+  }
+
+  static void delete(Path root) throws IOException {
+    try (Stream<Path> files = Files.walk(root)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Benchmark
+  public boolean frontend() throws IOException {
+    return javadoc(NoOpDoclet.class, List.of());
+  }
+
+  @Benchmark
+  public boolean generate() throws IOException {
+    return generate(List.of());
+  }
+
+  @Benchmark
+  public boolean generateCached() throws IOException {
+    return generate(List.of("-cache-dir", mCacheDir.toString()));
+  }
+
+  private boolean generate(List<String> extraOptions) throws IOException {
+    List<String> options = new ArrayList<>();
+    options.add("-output");
+    options.add(mRoot.resolve("api.txt").toString());
+    options.add("-root-dir");
+    options.add(mSources.toString());
+    options.add("-skip-class-regex");
+    options.add("\\.Hidden$");
+    options.addAll(extraOptions);
+    return javadoc(ApiDoclet.class, options);
+  }
+
+  private boolean javadoc(Class<? extends Doclet> doclet, List<String> docletOptions)
+      throws IOException {
+    return javadoc(doclet, mSources, mSourceFiles, docletOptions);
+  }
+
+  /** Runs javadoc with doclet on the sourceFiles of a {@link SyntheticSourceTree} in sources. */
+  static boolean javadoc(
+      Class<? extends Doclet> doclet,
+      Path sources,
+      List<Path> sourceFiles,
+      List<String> docletOptions)
+      throws IOException {
+    List<String> options = new ArrayList<>();
+    options.add("-subpackages");
+    options.add(SyntheticSourceTree.ROOT_PACKAGE);
+    options.add("-sourcepath");
+    options.add(sources.toString());
+    options.add("-quiet");
+    options.addAll(docletOptions);
+
+    DocumentationTool tool = ToolProvider.getSystemDocumentationTool();
+    try (StandardJavaFileManager fileManager = tool.getStandardFileManager(null, null, null)) {
+      boolean result =
+          tool.getTask(
+                  null,
+                  fileManager,
+                  null,
+                  doclet,
+                  options,
+                  fileManager.getJavaFileObjectsFromPaths(sourceFiles))
+              .call();
+      if (!result) {
+        throw new IllegalStateException(doclet.getSimpleName() + " failed, see the errors above.");
+      }
+      return result;
+    }
+  }
+}
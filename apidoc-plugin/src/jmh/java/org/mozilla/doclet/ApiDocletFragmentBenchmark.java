@@ -0,0 +1,223 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.doclet;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import jdk.javadoc.doclet.Doclet;
+import jdk.javadoc.doclet.DocletEnvironment;
+import jdk.javadoc.doclet.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Calls the parts of {@link ApiDoclet} that render each member on their own, on an element model
+ * that is only built once per trial, so that javadoc doesn't dominate the measurement like it does
+ * in {@link ApiDocletBenchmark}.
+ *
+ * <p>Every operation goes over the whole {@link SyntheticSourceTree}. The fragments are rendered
+ * without resolving imports, which {@link #import_} measures on the names they import. Run on its
+ * own with {@code ./gradlew :apidoc-plugin:jmh -PjmhArgs=ApiDocletFragmentBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ApiDocletFragmentBenchmark {
+  /** Writes every name as it is, like a writer for which every import conflicts. */
+  private static final ApiDoclet.ImportSink NO_IMPORTS = path -> path;
+
+  /**
+   * The element model of a {@link SyntheticSourceTree}. The model is only valid while javadoc
+   * runs, so the doclet that captures it waits on its own thread until the trial is over.
+   */
+  @State(Scope.Benchmark)
+  public static class ElementModel {
+    @Param("8")
+    public int packages;
+
+    @Param("20")
+    public int classes;
+
+    @Param("4")
+    public int depth;
+
+    @Param("3")
+    public int genericNesting;
+
+    final ApiDoclet doclet = new ApiDoclet();
+    DocletEnvironment env;
+
+    /** Types of the fields, method return values and parameters. */
+    final List<TypeMirror> types = new ArrayList<>();
+
+    /** Annotations of the classes and their members. */
+    final List<List<? extends AnnotationMirror>> annotations = new ArrayList<>();
+
+    final List<ExecutableElement> methods = new ArrayList<>();
+
+    /** Names that rendering the types and annotations imports, in order. */
+    final List<String> imports = new ArrayList<>();
+
+    private Path mRoot;
+    private Thread mJavadoc;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      mRoot = Files.createTempDirectory("apidoc-fragment-benchmark");
+      Path sources = mRoot.resolve("src");
+      List<Path> sourceFiles =
+          new SyntheticSourceTree(packages, classes, depth, genericNesting).write(sources);
+
+      CapturingDoclet.sEnvironment = new CompletableFuture<>();
+      CapturingDoclet.sTrialOver = new CountDownLatch(1);
+      mJavadoc =
+          new Thread(
+              () -> {
+                try {
+                  ApiDocletBenchmark.javadoc(
+                      CapturingDoclet.class, sources, sourceFiles, List.of());
+                } catch (Throwable t) {
+                  CapturingDoclet.sEnvironment.completeExceptionally(t);
+                }
+              },
+              "javadoc");
+      mJavadoc.start();
+
+      env = CapturingDoclet.sEnvironment.get();
+      doclet.start(env);
+
+      for (TypeElement type : ElementFilter.typesIn(env.getIncludedElements())) {
+        annotations.add(type.getAnnotationMirrors());
+        for (Element member : type.getEnclosedElements()) {
+          if (member instanceof VariableElement field) {
+            types.add(field.asType());
+            annotations.add(field.getAnnotationMirrors());
+          }
+          if (member instanceof ExecutableElement method) {
+            types.add(method.getReturnType());
+            method.getParameters().forEach(p -> types.add(p.asType()));
+            annotations.add(method.getAnnotationMirrors());
+            methods.add(method);
+          }
+        }
+      }
+
+      ApiDoclet.ImportSink recorder =
+          path -> {
+            imports.add(path);
+            return path;
+          };
+      types.forEach(t -> doclet.typeFragment(t, recorder));
+      annotations.forEach(a -> doclet.annotationFragment(a, recorder));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+      CapturingDoclet.sTrialOver.countDown();
+      mJavadoc.join();
+      ApiDocletBenchmark.delete(mRoot);
+    }
+  }
+
+  /** Hands the environment of its run to {@link ElementModel} and keeps the run going. */
+  public static class CapturingDoclet implements Doclet {
+    static volatile CompletableFuture<DocletEnvironment> sEnvironment;
+    static volatile CountDownLatch sTrialOver;
+
+    @Override
+    public void init(Locale locale, Reporter reporter) {}
+
+    @Override
+    public String getName() {
+      return "capturing";
+    }
+
+    @Override
+    public Set<? extends Option> getSupportedOptions() {
+      return Set.of();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latest();
+    }
+
+    @Override
+    public boolean run(DocletEnvironment environment) {
+      sEnvironment.complete(environment);
+      try {
+        sTrialOver.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return true;
+    }
+  }
+
+  @Benchmark
+  public void typeFragment(ElementModel model, Blackhole blackhole) {
+    for (TypeMirror type : model.types) {
+      blackhole.consume(model.doclet.typeFragment(type, NO_IMPORTS));
+    }
+  }
+
+  @Benchmark
+  public void annotationFragment(ElementModel model, Blackhole blackhole) {
+    for (List<? extends AnnotationMirror> annotations : model.annotations) {
+      blackhole.consume(model.doclet.annotationFragment(annotations, NO_IMPORTS));
+    }
+  }
+
+  /**
+   * Looks up the super method of every method, starting with empty supertype and signature tables
+   * like a run of the doclet does.
+   */
+  @Benchmark
+  public void findSuperMethod(ElementModel model, Blackhole blackhole) {
+    model.doclet.start(model.env);
+    for (ExecutableElement method : model.methods) {
+      blackhole.consume(model.doclet.findSuperMethod(method, NO_IMPORTS));
+    }
+  }
+
+  @Benchmark
+  public void import_(ElementModel model, Blackhole blackhole) {
+    Map<String, String> imports = new HashMap<>();
+    for (String path : model.imports) {
+      blackhole.consume(ApiDoclet.import_(imports, path));
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.doclet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the Java sources the benchmarks run the doclet on.
+ *
+ * <p>Each package has a chain of subclasses that override their superclass methods, which is
+ * what {@code findSuperMethod} looks up, and methods with nested generic types and annotation
+ * values for {@code typeFragment} and {@code annotationFragment}. Classes refer to the classes of
+ * the previous package, so that {@code WriterImpl.import_} has imports to resolve.
+ */
+final class SyntheticSourceTree {
+  static final String ROOT_PACKAGE = "org.mozilla.bench";
+
+  private final int mPackages;
+  private final int mClasses;
+  private final int mDepth;
+  private final int mGenericNesting;
+
+  /**
+   * @param packages number of packages
+   * @param classes number of classes in each package
+   * @param depth length of the subclass chains, 1 means that no class extends another one
+   * @param genericNesting how many generic types are nested in method return types
+   */
+  SyntheticSourceTree(int packages, int classes, int depth, int genericNesting) {
+    mPackages = packages;
+    mClasses = classes;
+    mDepth = Math.max(1, depth);
+    mGenericNesting = genericNesting;
+  }
+
+  /** Writes the tree into root and returns the source files. */
+  List<Path> write(Path root) throws IOException {
+    List<Path> files = new ArrayList<>();
+    files.add(writeSource(root, ROOT_PACKAGE, "Marker", markerSource()));
+    for (int pkg = 0; pkg < mPackages; pkg++) {
+      files.add(writeSource(root, packageName(pkg), listenerName(pkg), listenerSource(pkg)));
+      for (int cls = 0; cls < mClasses; cls++) {
+        files.add(writeSource(root, packageName(pkg), className(pkg, cls), classSource(pkg, cls)));
+      }
+    }
+    return files;
+  }
+
+  private static Path writeSource(Path root, String packageName, String name, String source)
+      throws IOException {
+    Path file = root.resolve(packageName.replace('.', '/')).resolve(name + ".java");
+    Files.createDirectories(file.getParent());
+    Files.writeString(file, source, StandardCharsets.UTF_8);
+    return file;
+  }
+
+  private static String packageName(int pkg) {
+    return ROOT_PACKAGE + ".p" + pkg;
+  }
+
+  private static String className(int pkg, int cls) {
+    return "P" + pkg + "C" + cls;
+  }
+
+  private static String listenerName(int pkg) {
+    return "P" + pkg + "Listener";
+  }
+
+  private static String header(String packageName) {
+    return "/* Generated by SyntheticSourceTree */\n\npackage " + packageName + ";\n\n";
+  }
+
+  private String markerSource() {
+    return header(ROOT_PACKAGE)
+        + "import java.lang.annotation.Documented;\n"
+        + "import java.lang.annotation.Retention;\n"
+        + "import java.lang.annotation.RetentionPolicy;\n\n"
+        + "@Documented\n"
+        + "@Retention(RetentionPolicy.RUNTIME)\n"
+        + "public @interface Marker {\n"
+        + "  String value();\n\n"
+        + "  int[] ids() default {};\n"
+        + "}\n";
+  }
+
+  private String listenerSource(int pkg) {
+    return header(packageName(pkg))
+        + "public interface "
+        + listenerName(pkg)
+        + "<T> {\n"
+        + "  void onEvent(T event);\n\n"
+        + "  default boolean isEnabled() {\n"
+        + "    return true;\n"
+        + "  }\n"
+        + "}\n";
+  }
+
+  /** java.util.Map<String, java.util.List<...T...>> nested genericNesting times. */
+  private String nestedType(int level) {
+    if (level == 0) {
+      return "T";
+    }
+    return "java.util.Map<String, java.util.List<? extends " + nestedType(level - 1) + ">>";
+  }
+
+  private String classSource(int pkg, int cls) {
+    String name = className(pkg, cls);
+    boolean chainRoot = cls % mDepth == 0;
+
+    StringBuilder source = new StringBuilder(header(packageName(pkg)));
+    source.append("import ").append(ROOT_PACKAGE).append(".Marker;\n");
+    if (pkg > 0) {
+      source.append("import ").append(packageName(pkg - 1)).append('.');
+      source.append(className(pkg - 1, cls)).append(";\n");
+    }
+    source.append('\n');
+
+    source.append("public class ").append(name).append("<T extends Comparable<T>>");
+    if (chainRoot) {
+      source.append(" implements ").append(listenerName(pkg)).append("<T>");
+    } else {
+      source.append(" extends ").append(className(pkg, cls - 1)).append("<T>");
+    }
+    source.append(" {\n");
+
+    source.append("  public static final int CONSTANT_").append(cls).append(" = ");
+    source.append(cls).append(";\n\n");
+    source.append("  public static final String NAME = \"").append(name).append("\";\n\n");
+
+    source.append("  public ").append(name).append("() {}\n\n");
+
+    // Declared by the chain root and overridden by every subclass
+    String values = nestedType(mGenericNesting);
+    if (!chainRoot) {
+      source.append("  @Override\n");
+    }
+    source.append("  public ").append(values).append(" values(T key) {\n");
+    source.append("    return null;\n  }\n\n");
+
+    if (chainRoot) {
+      source.append("  @Override\n  public void onEvent(T event) {}\n\n");
+    }
+
+    source.append("  @Marker(value = \"").append(name).append("\", ids = {1, 2, 3})\n");
+    source.append("  public <K extends Comparable<K>> ").append(values);
+    source.append(" method").append(cls).append("(@Marker(\"key\") K key, T value) {\n");
+    source.append("    return null;\n  }\n\n");
+
+    if (pkg > 0) {
+      String previous = className(pkg - 1, cls);
+      source.append("  public ").append(previous).append("<T> previous(");
+      source.append(previous).append("<T> other) {\n");
+      source.append("    return other;\n  }\n\n");
+    }
+
+    source.append("  @Deprecated\n  public void deprecated").append(cls).append("() {}\n");
+    source.append("}\n");
+    return source.toString();
+  }
+}
@@ -8,19 +8,37 @@ import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.LineMap;
 import com.sun.source.util.DocSourcePositions;
 import com.sun.source.util.TreePath;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -50,6 +68,7 @@ import javax.lang.model.type.TypeVariable;
 import javax.lang.model.type.TypeVisitor;
 import javax.lang.model.type.UnionType;
 import javax.lang.model.type.WildcardType;
+import javax.tools.JavaFileObject;
 import jdk.javadoc.doclet.Doclet;
 import jdk.javadoc.doclet.DocletEnvironment;
 import jdk.javadoc.doclet.Reporter;
@@ -81,7 +100,9 @@ public class ApiDoclet implements Doclet {
             "subpackages", new ApiDocOption("-subpackages", "Packages for api-doc."),
             "skip-class-regex",
                 new ApiDocOption("-skip-class-regex", "Skip class regex for api-doc."),
-            "root-dir", new ApiDocOption("-root-dir", "Root dir for api-doc."));
+            "root-dir", new ApiDocOption("-root-dir", "Root dir for api-doc."),
+            "cache-dir",
+                new ApiDocOption("-cache-dir", "Directory for rendered packages to reuse."));
     return new HashSet<>(mOptions.values());
   }
 
@@ -93,41 +114,82 @@ public class ApiDoclet implements Doclet {
   Options options;
   DocletEnvironment env;
 
+  /** Methods inherited by each type, see {@link #findSuperMethod}. */
+  private Map<TypeElement, SuperMethods> mSuperMethods;
+
+  private Map<ExecutableElement, Signature> mSignatures;
+
+  /** Cache entries used by this run, everything else in options.cacheDir is deleted. */
+  private Set<Path> mCacheEntries;
+
+  private Map<TypeElement, String> mTypeDigests;
+  private Map<String, String> mSourceDigests;
+
   private Options buildOptions() {
     return new Options(
         mOptions.get("output").getValue(),
         List.of(mOptions.get("skip-class-regex").getValue().split(":")),
         mOptions.get("root-dir").getValue(),
-        mOptions.get("subpackages").getValue());
+        mOptions.get("subpackages").getValue(),
+        mOptions.get("cache-dir").getValue() != null
+            ? Path.of(mOptions.get("cache-dir").getValue())
+            : null);
+  }
+
+  /**
+   * Resets the state kept during a run. The benchmarks call it to render fragments of an element
+   * model without going through {@link #run}.
+   */
+  void start(DocletEnvironment docletEnvironment) {
+    env = docletEnvironment;
+    mSuperMethods = new HashMap<>();
+    mSignatures = new HashMap<>();
+    mCacheEntries = new HashSet<>();
+    mTypeDigests = new HashMap<>();
+    mSourceDigests = new HashMap<>();
   }
 
   @Override
   public boolean run(final DocletEnvironment docletEnvironment) {
     options = buildOptions();
-    env = docletEnvironment;
+    start(docletEnvironment);
+
+    // Deletes the spool files if the packages can't be written
+    try (FileOutput output =
+        new FileOutput(
+            Path.of(options.outputFileName),
+            Path.of(options.outputFileName + ".map"),
+            Path.of(options.outputFileName + ".map.bin"),
+            Path.of(options.outputFileName + ".sha1"))) {
+      final Map<String, String> imports = new HashMap<>();
+      final WriterImpl writer = new WriterImpl(env, output, imports, options.rootDir + "/");
+
+      List<PackageElement> packages =
+          docletEnvironment.getSpecifiedElements().stream()
+              .sorted(ELEMENT_COMPARATOR)
+              .filter(
+                  el -> {
+                    // Only select top-level packages
+                    if (el instanceof PackageElement p) {
+                      return p.getEnclosingElement().getKind() == ElementKind.MODULE;
+                    }
+                    return false;
+                  })
+              .map(el -> (PackageElement) el)
+              .collect(Collectors.toList());
+
+      if (options.cacheDir != null) {
+        for (PackageElement packageElement : packages) {
+          appendBlock(packageElement, renderBlock(packageElement), writer);
+        }
+      } else {
+        packages.forEach(p -> writePackage(p, writer));
+      }
 
-    try {
-      final Writer writer =
-          new WriterImpl(
-              env,
-              new BufferedWriter(new FileWriter(options.outputFileName)),
-              new BufferedWriter(new FileWriter(options.outputFileName + ".map")),
-              options.rootDir + "/");
-
-      docletEnvironment.getSpecifiedElements().stream()
-          .sorted(ELEMENT_COMPARATOR)
-          .filter(
-              el -> {
-                // Only select top-level packages
-                if (el instanceof PackageElement p) {
-                  return p.getEnclosingElement().getKind() == ElementKind.MODULE;
-                }
-                return false;
-              })
-          .map(el -> (PackageElement) el)
-          .forEach(p -> writePackage(p, writer));
-
-      writer.close();
+      output.finish(imports.values());
+      if (options.cacheDir != null) {
+        pruneCache();
+      }
       return true;
     } catch (IOException e) {
       System.err.println("Error: " + e.getMessage());
@@ -186,14 +248,164 @@ public class ApiDoclet implements Doclet {
     final List<Pattern> skipClasses;
     final String rootDir;
     final String rootPackage;
+    final Path cacheDir;
 
     public Options(
-        String outputFileName, List<String> skipClassesRegex, String rootDir, String rootPackage) {
+        String outputFileName,
+        List<String> skipClassesRegex,
+        String rootDir,
+        String rootPackage,
+        Path cacheDir) {
       this.outputFileName = outputFileName;
       this.skipClasses =
           skipClassesRegex.stream().map(Pattern::compile).collect(Collectors.toList());
       this.rootDir = rootDir;
       this.rootPackage = rootPackage;
+      this.cacheDir = cacheDir;
+    }
+  }
+
+  private void appendBlock(PackageElement packageElement, Block block, WriterImpl writer) {
+    if (!writer.append(block)) {
+      // The block shortened a name that an earlier package imported from somewhere else,
+      // render it again with the imports of the previous packages.
+      writePackage(packageElement, writer);
+    }
+  }
+
+  /** Renders a package on its own, or reads it from options.cacheDir if it didn't change. */
+  private Block renderBlock(PackageElement packageElement) throws IOException {
+    Path entry = null;
+    if (options.cacheDir != null) {
+      entry = options.cacheDir.resolve(cacheKey(packageElement) + CACHE_ENTRY_SUFFIX);
+      mCacheEntries.add(entry);
+      if (Files.exists(entry)) {
+        return Block.read(entry);
+      }
+    }
+
+    Block block = new Block();
+    writePackage(packageElement, new WriterImpl(env, block, block.imports, options.rootDir + "/"));
+
+    if (entry != null) {
+      Files.createDirectories(options.cacheDir);
+      Path temp = Files.createTempFile(options.cacheDir, entry.getFileName().toString(), ".tmp");
+      block.write(temp);
+      Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    return block;
+  }
+
+  private static final String CACHE_VERSION = "3";
+  private static final String CACHE_ENTRY_SUFFIX = ".block";
+
+  /**
+   * Identifies the output of a package. It covers the source files of its classes and of all their
+   * supertypes and annotations, the values of constants and annotations, which can come from
+   * other files, and the types that the names in the signatures resolve to, which can change when a
+   * class is added elsewhere on the source path or classpath.
+   */
+  private String cacheKey(PackageElement packageElement) {
+    Set<String> inputs = new TreeSet<>();
+    cacheInputs(packageElement, inputs);
+
+    List<String> key = new ArrayList<>();
+    key.add(CACHE_VERSION);
+    key.add(options.rootDir);
+    options.skipClasses.forEach(p -> key.add(p.pattern()));
+    key.add(packageElement.getQualifiedName().toString());
+    key.addAll(inputs);
+    return sha256(String.join("\n", key));
+  }
+
+  private void cacheInputs(Element element, Set<String> inputs) {
+    if (element instanceof TypeElement type) {
+      inputs.add(typeDigest(type));
+      visitSupertypes(type.asType(), t -> inputs.add(typeDigest(t)));
+    }
+    if (element instanceof VariableElement field && field.getConstantValue() != null) {
+      inputs.add(element.getEnclosingElement() + "." + field + "=" + field.getConstantValue());
+    }
+    if (element instanceof ExecutableElement executable) {
+      executable.getParameters().forEach(p -> cacheInputs(p, inputs));
+    }
+    if (element instanceof VariableElement || element instanceof ExecutableElement) {
+      inputs.add(element.getEnclosingElement() + "." + element + ":" + element.asType());
+    }
+    if (element instanceof Parameterizable parameterizable) {
+      for (TypeParameterElement parameter : parameterizable.getTypeParameters()) {
+        inputs.add(element + "<" + parameter + " extends " + parameter.getBounds());
+      }
+    }
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      inputs.add(annotation.toString());
+      inputs.add(typeDigest((TypeElement) annotation.getAnnotationType().asElement()));
+    }
+    for (Element e : element.getEnclosedElements()) {
+      if (!(element instanceof PackageElement) || e instanceof TypeElement) {
+        cacheInputs(e, inputs);
+      }
+    }
+  }
+
+  /**
+   * Digest of the source file of a type or, for types from the classpath, of the parts of it that
+   * end up in the api of its subclasses.
+   */
+  private String typeDigest(TypeElement type) {
+    return mTypeDigests.computeIfAbsent(
+        type,
+        t -> {
+          TreePath path = env.getDocTrees().getPath(t);
+          if (path != null) {
+            JavaFileObject source = path.getCompilationUnit().getSourceFile();
+            return source.getName()
+                + ":"
+                + mSourceDigests.computeIfAbsent(source.getName(), name -> sourceDigest(source));
+          }
+
+          StringBuilder summary = new StringBuilder(t.getQualifiedName());
+          t.getAnnotationMirrors().forEach(a -> summary.append("\n").append(a));
+          for (Element e : t.getEnclosedElements()) {
+            if (e.getKind() == ElementKind.METHOD) {
+              summary
+                  .append("\n")
+                  .append(e.getModifiers())
+                  .append(e.getSimpleName())
+                  .append(signature((ExecutableElement) e).types());
+            }
+          }
+          return t.getQualifiedName() + ":" + sha256(summary.toString());
+        });
+  }
+
+  private static String sourceDigest(JavaFileObject source) {
+    try {
+      return sha256(source.getCharContent(true).toString());
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static String sha256(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /** Deletes the cache entries, and leftover temporary files, that this run didn't use. */
+  private void pruneCache() throws IOException {
+    try (Stream<Path> files = Files.list(options.cacheDir)) {
+      for (Path file : files.collect(Collectors.toList())) {
+        String name = file.getFileName().toString();
+        if ((name.endsWith(CACHE_ENTRY_SUFFIX) || name.endsWith(".tmp"))
+            && !mCacheEntries.contains(file)) {
+          Files.delete(file);
+        }
+      }
     }
   }
 
@@ -300,11 +512,11 @@ public class ApiDoclet implements Doclet {
     }
   }
 
-  private String toLine(TypeElement classDoc, Writer writer) {
+  private String toLine(TypeElement classDoc, ImportSink imports) {
     List<AnnotationMirror> annotations = new ArrayList<>(classDoc.getAnnotationMirrors());
     visitSupertypes(classDoc.asType(), t -> annotations.addAll(t.getAnnotationMirrors()));
 
-    StringBuilder classLine = new StringBuilder(annotationFragment(annotations.stream(), writer));
+    StringBuilder classLine = new StringBuilder(annotationFragment(annotations.stream(), imports));
     for (Modifier modifier : classDoc.getModifiers()) {
       if (modifier == Modifier.ABSTRACT
           && (classDoc.getKind() == ElementKind.ANNOTATION_TYPE
@@ -323,7 +535,7 @@ public class ApiDoclet implements Doclet {
 
     classLine.append(classNameFragment(classDoc));
 
-    String typeParams = typeParamsFragment(classDoc.getTypeParameters(), writer);
+    String typeParams = typeParamsFragment(classDoc.getTypeParameters(), imports);
     classLine.append(typeParams);
 
     if (typeParams.equals("")) {
@@ -337,7 +549,7 @@ public class ApiDoclet implements Doclet {
         && classDoc.getKind() != ElementKind.ENUM) {
       classLine
           .append("extends ")
-          .append(typeFragment(classDoc.getSuperclass(), writer))
+          .append(typeFragment(classDoc.getSuperclass(), imports))
           .append(" ");
     }
 
@@ -345,7 +557,7 @@ public class ApiDoclet implements Doclet {
       classLine.append("implements ");
       classDoc.getInterfaces().stream()
           .sorted(TYPE_MIRROR_COMPARATOR)
-          .map(t -> typeFragment(t, writer))
+          .map(t -> typeFragment(t, imports))
           .forEach(t -> classLine.append(t).append(" "));
     }
 
@@ -413,19 +625,19 @@ public class ApiDoclet implements Doclet {
         .anyMatch(a -> "java.lang.annotation.Documented".equals(a.getAnnotationType().toString()));
   }
 
-  private Stream<String> from(Stream<? extends AnnotationMirror> annotations, Writer writer) {
-    return annotations.filter(this::isDocumented).map(s -> annotation(s, writer));
+  private Stream<String> from(Stream<? extends AnnotationMirror> annotations, ImportSink imports) {
+    return annotations.filter(this::isDocumented).map(s -> annotation(s, imports));
   }
 
   private String annotationValues(
-      Map<? extends ExecutableElement, ? extends AnnotationValue> valuePairs, Writer writer) {
+      Map<? extends ExecutableElement, ? extends AnnotationValue> valuePairs, ImportSink imports) {
     String fragment =
         valuePairs.entrySet().stream()
             .map(
                 p ->
                     p.getKey().getSimpleName()
                         + "="
-                        + p.getValue().accept(new AnnotationValueVisitor(), writer))
+                        + p.getValue().accept(new AnnotationValueVisitor(), imports))
             .collect(Collectors.joining(","));
     if (fragment.equals("")) {
       return "";
@@ -433,19 +645,20 @@ public class ApiDoclet implements Doclet {
     return "(" + fragment + ")";
   }
 
-  private String annotation(AnnotationMirror annotation, Writer writer) {
+  private String annotation(AnnotationMirror annotation, ImportSink imports) {
     return "@"
-        + writer.import_(annotation.getAnnotationType().toString())
-        + annotationValues(annotation.getElementValues(), writer);
+        + imports.import_(annotation.getAnnotationType().toString())
+        + annotationValues(annotation.getElementValues(), imports);
   }
 
-  private String annotationFragment(List<? extends AnnotationMirror> members, Writer writer) {
+  String annotationFragment(List<? extends AnnotationMirror> members, ImportSink imports) {
     Stream<? extends AnnotationMirror> stream = members.stream().sorted(ANNOTATION_DESC_COMPARATOR);
-    return annotationFragment(stream, writer);
+    return annotationFragment(stream, imports);
   }
 
-  private String annotationFragment(Stream<? extends AnnotationMirror> annotations, Writer writer) {
-    String fragment = from(annotations, writer).distinct().collect(Collectors.joining(" "));
+  private String annotationFragment(
+      Stream<? extends AnnotationMirror> annotations, ImportSink imports) {
+    String fragment = from(annotations, imports).distinct().collect(Collectors.joining(" "));
     if (fragment.equals("")) {
       return "";
     }
@@ -468,99 +681,99 @@ public class ApiDoclet implements Doclet {
   }
 
   static class AnnotationValueVisitor
-      implements javax.lang.model.element.AnnotationValueVisitor<String, Writer> {
+      implements javax.lang.model.element.AnnotationValueVisitor<String, ImportSink> {
     @Override
-    public String visit(AnnotationValue annotationValue, Writer writer) {
+    public String visit(AnnotationValue annotationValue, ImportSink imports) {
       return annotationValue.toString();
     }
 
     @Override
-    public String visitBoolean(boolean b, Writer writer) {
+    public String visitBoolean(boolean b, ImportSink imports) {
       return Boolean.toString(b);
     }
 
     @Override
-    public String visitByte(byte b, Writer writer) {
+    public String visitByte(byte b, ImportSink imports) {
       return Byte.toString(b);
     }
 
     @Override
-    public String visitChar(char c, Writer writer) {
+    public String visitChar(char c, ImportSink imports) {
       return Character.toString(c);
     }
 
     @Override
-    public String visitDouble(double v, Writer writer) {
+    public String visitDouble(double v, ImportSink imports) {
       return Double.toString(v);
     }
 
     @Override
-    public String visitFloat(float v, Writer writer) {
+    public String visitFloat(float v, ImportSink imports) {
       return Float.toString(v);
     }
 
     @Override
-    public String visitInt(int i, Writer writer) {
+    public String visitInt(int i, ImportSink imports) {
       return Integer.toString(i);
     }
 
     @Override
-    public String visitLong(long l, Writer writer) {
+    public String visitLong(long l, ImportSink imports) {
       return Long.toString(l);
     }
 
     @Override
-    public String visitShort(short i, Writer writer) {
+    public String visitShort(short i, ImportSink imports) {
       return Short.toString(i);
     }
 
     @Override
-    public String visitString(String s, Writer writer) {
+    public String visitString(String s, ImportSink imports) {
       return "\"" + s + "\"";
     }
 
     @Override
-    public String visitType(TypeMirror typeMirror, Writer writer) {
+    public String visitType(TypeMirror typeMirror, ImportSink imports) {
       return typeMirror.toString();
     }
 
     @Override
-    public String visitEnumConstant(VariableElement variableElement, Writer writer) {
+    public String visitEnumConstant(VariableElement variableElement, ImportSink imports) {
       String typeName =
-          writer.import_(
+          imports.import_(
               ((TypeElement) variableElement.getEnclosingElement()).getQualifiedName().toString());
       return typeName + "." + variableElement.getSimpleName();
     }
 
     @Override
-    public String visitAnnotation(AnnotationMirror annotationMirror, Writer writer) {
+    public String visitAnnotation(AnnotationMirror annotationMirror, ImportSink imports) {
       return annotationMirror.toString();
     }
 
     @Override
-    public String visitArray(List<? extends AnnotationValue> list, Writer writer) {
+    public String visitArray(List<? extends AnnotationValue> list, ImportSink imports) {
       return "{"
-          + list.stream().map(v -> v.accept(this, writer)).collect(Collectors.joining(", "))
+          + list.stream().map(v -> v.accept(this, imports)).collect(Collectors.joining(", "))
           + "}";
     }
 
     @Override
-    public String visitUnknown(AnnotationValue annotationValue, Writer writer) {
+    public String visitUnknown(AnnotationValue annotationValue, ImportSink imports) {
       return annotationValue.toString();
     }
   }
 
   static class VisitorArguments {
     String postfix;
-    Writer writer;
+    ImportSink imports;
 
-    public VisitorArguments(Writer writer) {
-      this.writer = writer;
+    public VisitorArguments(ImportSink imports) {
+      this.imports = imports;
       postfix = "";
     }
   }
 
-  private String typeFragment(TypeMirror typeMirror, Writer writer) {
+  String typeFragment(TypeMirror typeMirror, ImportSink imports) {
     return typeMirror.accept(
         new TypeVisitor<>() {
           @Override
@@ -587,7 +800,7 @@ public class ApiDoclet implements Doclet {
           @Override
           public String visitDeclared(DeclaredType declaredType, VisitorArguments arguments) {
             if (declaredType.asElement() instanceof TypeElement) {
-              return declaredTypeFragment(declaredType, arguments.writer) + arguments.postfix;
+              return declaredTypeFragment(declaredType, arguments.imports) + arguments.postfix;
             }
             return declaredType + arguments.postfix;
           }
@@ -633,17 +846,17 @@ public class ApiDoclet implements Doclet {
             throw new UnsupportedOperationException();
           }
         },
-        new VisitorArguments(writer));
+        new VisitorArguments(imports));
   }
 
-  private String declaredTypeFragment(DeclaredType type, Writer writer) {
+  private String declaredTypeFragment(DeclaredType type, ImportSink imports) {
     String typeArgs =
         type.getTypeArguments().stream()
-            .map(a -> typeFragment(a, writer))
+            .map(a -> typeFragment(a, imports))
             .collect(Collectors.joining(","));
 
     String fragment =
-        writer.import_(((TypeElement) type.asElement()).getQualifiedName().toString());
+        imports.import_(((TypeElement) type.asElement()).getQualifiedName().toString());
 
     if (!typeArgs.equals("")) {
       fragment += "<" + typeArgs + ">";
@@ -652,17 +865,17 @@ public class ApiDoclet implements Doclet {
     return fragment;
   }
 
-  private String paramFragment(VariableElement parameter, Writer writer) {
-    return annotationFragment(parameter.getAnnotationMirrors(), writer)
-        + typeFragment(parameter.asType(), writer);
+  private String paramFragment(VariableElement parameter, ImportSink imports) {
+    return annotationFragment(parameter.getAnnotationMirrors(), imports)
+        + typeFragment(parameter.asType(), imports);
   }
 
-  private String paramsFragment(ExecutableElement executable, Writer writer) {
+  private String paramsFragment(ExecutableElement executable, ImportSink imports) {
     String fragment = "(";
 
     fragment +=
         executable.getParameters().stream()
-            .map(p -> paramFragment(p, writer))
+            .map(p -> paramFragment(p, imports))
             .collect(Collectors.joining(", "));
 
     if (executable.isVarArgs()) {
@@ -687,14 +900,14 @@ public class ApiDoclet implements Doclet {
     return " = " + field.getConstantValue();
   }
 
-  private String typeParamFragment(TypeParameterElement typeVariable, Writer writer) {
+  private String typeParamFragment(TypeParameterElement typeVariable, ImportSink imports) {
     String bounds =
         typeVariable.getBounds().stream()
             // Ignore trivial bound
             .filter(t -> !t.toString().equals("java.lang.Object"))
-            .map(t -> typeFragment(t, writer))
+            .map(t -> typeFragment(t, imports))
             .collect(Collectors.joining(" & "));
-    String fragment = typeFragment(typeVariable.asType(), writer);
+    String fragment = typeFragment(typeVariable.asType(), imports);
     if (bounds.length() > 0) {
       fragment += " extends " + bounds;
     }
@@ -702,10 +915,10 @@ public class ApiDoclet implements Doclet {
   }
 
   private String typeParamsFragment(
-      List<? extends TypeParameterElement> typeVariables, Writer writer) {
+      List<? extends TypeParameterElement> typeVariables, ImportSink imports) {
     String parameters =
         typeVariables.stream()
-            .map(tv -> typeParamFragment(tv, writer))
+            .map(tv -> typeParamFragment(tv, imports))
             .collect(Collectors.joining(","));
 
     if (parameters.equals("")) {
@@ -715,12 +928,12 @@ public class ApiDoclet implements Doclet {
     return "<" + parameters + "> ";
   }
 
-  private String typesFragment(ExecutableElement executable, Writer writer) {
+  private String typesFragment(ExecutableElement executable, ImportSink imports) {
     String fragment = "(";
 
     fragment +=
         executable.getParameters().stream()
-            .map(t -> typeFragment(t.asType(), writer))
+            .map(t -> typeFragment(t.asType(), imports))
             .collect(Collectors.joining(", "));
 
     if (executable.isVarArgs()) {
@@ -730,33 +943,109 @@ public class ApiDoclet implements Doclet {
     return fragment + ")";
   }
 
-  private Element findSuperMethod(Element member, Writer writer) {
-    if (!(member instanceof ExecutableElement)) {
+  /** Rendered parameter types of a method, and the imports that rendering them registers. */
+  private record Signature(String types, List<String> imports) {}
+
+  /** Records the imports requested while rendering a fragment. */
+  private static class ImportRecorder implements ImportSink {
+    final List<String> imports = new ArrayList<>();
+
+    @Override
+    public String import_(String path) {
+      imports.add(path);
+      return path;
+    }
+  }
+
+  private Signature signature(ExecutableElement method) {
+    Signature signature = mSignatures.get(method);
+    if (signature == null) {
+      ImportRecorder recorder = new ImportRecorder();
+      signature = new Signature(typesFragment(method, recorder), recorder.imports);
+      mSignatures.put(method, signature);
+    }
+    return signature;
+  }
+
+  /**
+   * Methods inherited by a type in the order {@link #visitSupertypes} reaches them, indexed by name
+   * and by name and parameter types.
+   */
+  private static class SuperMethods {
+    final List<ExecutableElement> methods = new ArrayList<>();
+    final Map<String, List<ExecutableElement>> byName = new HashMap<>();
+    final Map<String, ExecutableElement> bySignature = new HashMap<>();
+  }
+
+  private void addSuperMethod(SuperMethods superMethods, ExecutableElement method) {
+    String name = method.getSimpleName().toString();
+    List<ExecutableElement> overloads =
+        superMethods.byName.computeIfAbsent(name, n -> new ArrayList<>());
+    if (overloads.contains(method)) {
+      // Already reached through another path
+      return;
+    }
+    overloads.add(method);
+    superMethods.methods.add(method);
+    superMethods.bySignature.putIfAbsent(name + signature(method).types(), method);
+  }
+
+  private void addSupertypes(SuperMethods superMethods, TypeMirror type) {
+    for (TypeMirror t : env.getTypeUtils().directSupertypes(type)) {
+      TypeElement el = (TypeElement) env.getTypeUtils().asElement(t);
+      if (el == null) {
+        addSupertypes(superMethods, t);
+        continue;
+      }
+      el.getEnclosedElements().stream()
+          .filter(e -> e.getKind() == ElementKind.METHOD)
+          .forEach(e -> addSuperMethod(superMethods, (ExecutableElement) e));
+      superMethods(el).methods.forEach(m -> addSuperMethod(superMethods, m));
+    }
+  }
+
+  private SuperMethods superMethods(TypeElement typeElement) {
+    SuperMethods superMethods = mSuperMethods.get(typeElement);
+    if (superMethods == null) {
+      superMethods = new SuperMethods();
+      addSupertypes(superMethods, typeElement.asType());
+      mSuperMethods.put(typeElement, superMethods);
+    }
+    return superMethods;
+  }
+
+  Element findSuperMethod(Element member, ImportSink imports) {
+    if (!(member instanceof ExecutableElement executable)) {
       return null;
     }
 
-    List<ExecutableElement> methods = new ArrayList<>();
-    TypeElement typeElement = (TypeElement) member.getEnclosingElement();
-    visitSupertypes(
-        typeElement.asType(),
-        t ->
-            t.getEnclosedElements().stream()
-                .filter(e -> e.getKind() == ElementKind.METHOD)
-                .map(e -> (ExecutableElement) e)
-                .forEach(methods::add));
+    String name = executable.getSimpleName().toString();
+    SuperMethods superMethods = superMethods((TypeElement) member.getEnclosingElement());
+    List<ExecutableElement> overloads = superMethods.byName.get(name);
+    if (overloads == null) {
+      return null;
+    }
 
-    return methods.stream()
-        .filter(m -> m.getSimpleName().toString().equals(member.getSimpleName().toString()))
-        .filter(
-            m -> typesFragment(m, writer).equals(typesFragment((ExecutableElement) member, writer)))
-        .findFirst()
-        .orElse(null);
+    Signature signature = signature(executable);
+    ExecutableElement superMethod = superMethods.bySignature.get(name + signature.types());
+
+    // Comparing the rendered signatures imports the types of every overload up to the match, keep
+    // registering those so that the import header doesn't change.
+    for (ExecutableElement overload : overloads) {
+      signature(overload).imports().forEach(imports::import_);
+      signature.imports().forEach(imports::import_);
+      if (overload == superMethod) {
+        break;
+      }
+    }
+
+    return superMethod;
   }
 
-  private String toLine(Element member, Writer writer) {
+  private String toLine(Element member, ImportSink imports) {
     String line = tag(member) + " ";
 
-    line += annotationFragment(member.getAnnotationMirrors(), writer);
+    line += annotationFragment(member.getAnnotationMirrors(), imports);
 
     if (member instanceof ExecutableElement executable) {
       line += executable.isDefault() ? "default " : "";
@@ -776,22 +1065,22 @@ public class ApiDoclet implements Doclet {
     }
 
     if (member instanceof Parameterizable parameterizable) {
-      line += typeParamsFragment(parameterizable.getTypeParameters(), writer);
+      line += typeParamsFragment(parameterizable.getTypeParameters(), imports);
     }
 
     if (member.getKind() == ElementKind.CONSTRUCTOR) {
       line += member.getEnclosingElement().getSimpleName();
     } else {
       if (member instanceof ExecutableElement executable) {
-        line += (typeFragment(executable.getReturnType(), writer)) + " ";
+        line += (typeFragment(executable.getReturnType(), imports)) + " ";
       } else if (member instanceof VariableElement) {
-        line += typeFragment(member.asType(), writer) + " ";
+        line += typeFragment(member.asType(), imports) + " ";
       }
       line += member.getSimpleName();
     }
 
     if (member instanceof ExecutableElement executable) {
-      line += paramsFragment(executable, writer);
+      line += paramsFragment(executable, imports);
     }
 
     if (member instanceof VariableElement variable) {
@@ -801,7 +1090,12 @@ public class ApiDoclet implements Doclet {
     return line + ";";
   }
 
-  public interface Writer {
+  /** Registers the types a fragment refers to, and returns the name to write for each of them. */
+  public interface ImportSink {
+    String import_(String path);
+  }
+
+  public interface Writer extends ImportSink {
     Writer indent();
 
     void newLine();
@@ -809,20 +1103,362 @@ public class ApiDoclet implements Doclet {
     void line(String text);
 
     void line(String text, Element position);
+  }
 
-    void close();
+  record SourcePosition(String fileName, long line, long column) {}
 
-    String import_(String path);
+  /** Destination of the lines and source map entries produced by a {@link WriterImpl}. */
+  private interface Output {
+    void append(String lines, String sourceMap);
   }
 
-  record SourcePosition(String fileName, long line, long column) {}
+  /**
+   * Temporary file that collects output while the packages are walked, so that it can be appended
+   * to the final file after its header without being held in memory.
+   */
+  private static class Spool implements Closeable {
+    private final FileChannel mChannel;
+    private final DataOutputStream mStream;
+
+    public Spool(Path target) throws IOException {
+      Path file =
+          Files.createTempFile(
+              target.toAbsolutePath().getParent(), target.getFileName() + "-", ".tmp");
+      mChannel =
+          FileChannel.open(
+              file,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.DELETE_ON_CLOSE);
+      mStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(mChannel)));
+    }
+
+    public void append(String text) {
+      try {
+        mStream.write(text.getBytes(StandardCharsets.UTF_8));
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    public void appendInts(int... values) {
+      try {
+        for (int value : values) {
+          mStream.writeInt(value);
+        }
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    /** Writes header followed by the spooled output to target and deletes the spool. */
+    public void transferTo(Path target, byte[] header) throws IOException {
+      transferTo(target, header, null);
+    }
+
+    /** Same as {@link #transferTo(Path, byte[])}, digest is updated with what is written. */
+    public void transferTo(Path target, byte[] header, MessageDigest digest) throws IOException {
+      mStream.flush();
+      try (FileChannel out =
+          FileChannel.open(
+              target,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+
+        long size = mChannel.size();
+        if (digest == null) {
+          for (long position = 0; position < size; ) {
+            position += mChannel.transferTo(position, size - position, out);
+          }
+          return;
+        }
+
+        digest.update(header);
+        // Through a buffer instead of transferTo, so that the digest sees the bytes
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+        for (long position = 0; position < size; ) {
+          chunk.clear();
+          position += mChannel.read(chunk, position);
+          chunk.flip();
+          digest.update(chunk.duplicate());
+          while (chunk.hasRemaining()) {
+            out.write(chunk);
+          }
+        }
+      } finally {
+        mChannel.close();
+      }
+    }
+
+    /** Deletes the spool, does nothing if it was transferred already. */
+    @Override
+    public void close() throws IOException {
+      mChannel.close();
+    }
+  }
+
+  /**
+   * Writes the api file and its source map, as text and in the binary format, and the SHA-1 of the
+   * api file, so that the changelog check does not need to read the api file again.
+   */
+  private static class FileOutput implements Output, Closeable {
+    private final Path mOutput;
+    private final Path mSourceMapOutput;
+    private final Path mFingerprintOutput;
+    private final Spool mBody;
+    private final Spool mSourceMap;
+    private final BinarySourceMap mBinarySourceMap;
+
+    public FileOutput(
+        Path output, Path sourceMapOutput, Path binarySourceMapOutput, Path fingerprintOutput)
+        throws IOException {
+      mOutput = output;
+      mSourceMapOutput = sourceMapOutput;
+      mFingerprintOutput = fingerprintOutput;
+      Spool body = new Spool(output);
+      Spool sourceMap = null;
+      try {
+        sourceMap = new Spool(sourceMapOutput);
+        mBinarySourceMap = new BinarySourceMap(binarySourceMapOutput);
+      } catch (IOException | RuntimeException ex) {
+        closeAll(ex, body, sourceMap);
+        throw ex;
+      }
+      mBody = body;
+      mSourceMap = sourceMap;
+    }
+
+    @Override
+    public void append(String lines, String sourceMap) {
+      mBody.append(lines);
+      mSourceMap.append(sourceMap);
+      mBinarySourceMap.append(sourceMap);
+    }
+
+    /** Writes the files, preceded by the import statements of imports. */
+    public void finish(Collection<String> imports) throws IOException {
+      List<String> sorted = new ArrayList<>(imports);
+      Collections.sort(sorted);
+
+      StringBuilder header = new StringBuilder();
+      // Number of lines in the header, that don't have a source map
+      int headerSize = 0;
+      for (String imported : sorted) {
+        header.append("import ").append(imported).append(";\n");
+        headerSize++;
+      }
+
+      if (sorted.size() > 0) {
+        header.append("\n");
+        headerSize++;
+      }
+
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException ex) {
+        throw new RuntimeException(ex);
+      }
+      mBody.transferTo(mOutput, header.toString().getBytes(StandardCharsets.UTF_8), digest);
+      Files.writeString(mFingerprintOutput, HexFormat.of().formatHex(digest.digest()) + "\n");
+      mSourceMap.transferTo(
+          mSourceMapOutput, "\n".repeat(headerSize).getBytes(StandardCharsets.UTF_8));
+      mBinarySourceMap.finish(headerSize);
+    }
+
+    /** Deletes the spools that were not transferred, e.g. when writing the packages failed. */
+    @Override
+    public void close() throws IOException {
+      IOException error = new IOException("Could not delete the spool files");
+      closeAll(error, mBody, mSourceMap, mBinarySourceMap);
+      if (error.getSuppressed().length > 0) {
+        throw error;
+      }
+    }
+
+    /** Closes each of the spools that is not null, errors are added to error as suppressed. */
+    private static void closeAll(Exception error, Closeable... spools) {
+      for (Closeable spool : spools) {
+        if (spool == null) {
+          continue;
+        }
+        try {
+          spool.close();
+        } catch (IOException ex) {
+          error.addSuppressed(ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes text as standard UTF-8 after its length in bytes. Unlike writeUTF, it is not limited to
+   * 64K and apilint.py can decode it like any other UTF-8.
+   */
+  private static void writeString(DataOutputStream out, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Source map that apilint.py can index without parsing it. All integers are big-endian:
+   *
+   * <pre>
+   * int magic, int version
+   * int fileCount, fileCount * (int length, UTF-8 file name)
+   * int lineCount, lineCount * (int fileIndex, int line, int column)
+   * </pre>
+   *
+   * Lines without a source position have fileIndex -1.
+   */
+  private static class BinarySourceMap implements Closeable {
+    static final int MAGIC = 0x41504d42; // "APMB"
+    static final int VERSION = 2;
+
+    private final Path mOutput;
+    private final Spool mEntries;
+    private final Map<String, Integer> mFiles = new LinkedHashMap<>();
+    private int mLines = 0;
+
+    public BinarySourceMap(Path output) throws IOException {
+      mOutput = output;
+      mEntries = new Spool(output);
+    }
+
+    /** Appends the entries of a text source map, one per line. */
+    public void append(String sourceMap) {
+      int start = 0;
+      for (int end = sourceMap.indexOf('\n'); end != -1; end = sourceMap.indexOf('\n', start)) {
+        appendEntry(sourceMap.substring(start, end));
+        start = end + 1;
+      }
+    }
+
+    private void appendEntry(String entry) {
+      mLines++;
+      if (entry.isEmpty()) {
+        mEntries.appendInts(-1, 0, 0);
+        return;
+      }
+
+      // The file name can contain ':' but line and column can't
+      int column = entry.lastIndexOf(':');
+      int line = entry.lastIndexOf(':', column - 1);
+      int file = mFiles.computeIfAbsent(entry.substring(0, line), f -> mFiles.size());
+      mEntries.appendInts(
+          file,
+          Integer.parseInt(entry.substring(line + 1, column)),
+          Integer.parseInt(entry.substring(column + 1)));
+    }
+
+    public void finish(int headerSize) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(bytes);
+      header.writeInt(MAGIC);
+      header.writeInt(VERSION);
+      header.writeInt(mFiles.size());
+      for (String file : mFiles.keySet()) {
+        writeString(header, file);
+      }
+      header.writeInt(headerSize + mLines);
+      for (int i = 0; i < headerSize; i++) {
+        header.writeInt(-1);
+        header.writeInt(0);
+        header.writeInt(0);
+      }
+      mEntries.transferTo(mOutput, bytes.toByteArray());
+    }
+
+    @Override
+    public void close() throws IOException {
+      mEntries.close();
+    }
+  }
+
+  /** Output of a package rendered on its own, with the imports it registered. */
+  private static class Block implements Output {
+    final StringBuilder lines = new StringBuilder();
+    final StringBuilder sourceMap = new StringBuilder();
+    final Map<String, String> imports = new HashMap<>();
+
+    @Override
+    public void append(String lines, String sourceMap) {
+      this.lines.append(lines);
+      this.sourceMap.append(sourceMap);
+    }
+
+    public void write(Path file) throws IOException {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+        out.writeInt(imports.size());
+        for (Map.Entry<String, String> entry : imports.entrySet()) {
+          writeString(out, entry.getKey());
+          writeString(out, entry.getValue());
+        }
+        writeString(out, lines.toString());
+        writeString(out, sourceMap.toString());
+      }
+    }
+
+    public static Block read(Path file) throws IOException {
+      Block block = new Block();
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+        int imports = in.readInt();
+        for (int i = 0; i < imports; i++) {
+          block.imports.put(readString(in), readString(in));
+        }
+        block.lines.append(readString(in));
+        block.sourceMap.append(readString(in));
+      }
+      return block;
+    }
+  }
+
+  /**
+   * Imports the class of path, unless its simple name is already imported from another package,
+   * and returns how path is written with the imports.
+   */
+  static String import_(Map<String, String> imports, String path) {
+    String[] split = path.split("\\.");
+    if (split.length == 1) {
+      // Primitive type, nothing to import
+      return path;
+    }
+
+    int firstClassIndex = 1;
+    while (firstClassIndex <= split.length
+        && Character.isLowerCase(split[firstClassIndex - 1].charAt(0))) {
+      firstClassIndex++;
+    }
+
+    String base = split[firstClassIndex - 1];
+    String imported = String.join(".", Arrays.copyOfRange(split, 0, firstClassIndex));
+
+    if (imports.containsKey(base) && !imports.get(base).equals(imported)) {
+      // Conflicting import
+      return path;
+    }
+
+    imports.put(base, imported);
+    return String.join(".", Arrays.copyOfRange(split, firstClassIndex - 1, split.length));
+  }
 
   private static class WriterImpl implements Writer {
-    private final BufferedWriter mWriter;
-    private final BufferedWriter mSourceMapWriter;
     private final int mIndentation;
-    private final StringBuilder mStringBuilder;
-    private final StringBuilder mSourceMap;
+    private final Output mOutput;
     private final Map<String, String> mImports;
     private final String mRootDir;
     private final DocletEnvironment mEnv;
@@ -830,108 +1466,47 @@ public class ApiDoclet implements Doclet {
     private static final String INDENTATION = "  ";
 
     public WriterImpl(
-        DocletEnvironment env,
-        BufferedWriter writer,
-        BufferedWriter sourceMapWriter,
-        String rootDir) {
-      this(
-          env,
-          writer,
-          sourceMapWriter,
-          0,
-          new StringBuilder(),
-          new HashMap<>(),
-          new StringBuilder(),
-          rootDir);
+        DocletEnvironment env, Output output, Map<String, String> imports, String rootDir) {
+      this(env, 0, output, imports, rootDir);
     }
 
     private WriterImpl(
         DocletEnvironment env,
-        BufferedWriter writer,
-        BufferedWriter sourceMapWriter,
         int indentation,
-        StringBuilder stringBuilder,
+        Output output,
         Map<String, String> imports,
-        StringBuilder sourceMap,
         String rootDir) {
       mEnv = env;
-      mWriter = writer;
-      mSourceMapWriter = sourceMapWriter;
       mIndentation = indentation;
-      mStringBuilder = stringBuilder;
+      mOutput = output;
       mImports = imports;
-      mSourceMap = sourceMap;
       mRootDir = rootDir;
     }
 
     public Writer indent() {
-      return new WriterImpl(
-          mEnv,
-          mWriter,
-          mSourceMapWriter,
-          mIndentation + 1,
-          mStringBuilder,
-          mImports,
-          mSourceMap,
-          mRootDir);
+      return new WriterImpl(mEnv, mIndentation + 1, mOutput, mImports, mRootDir);
     }
 
-    public String import_(String path) {
-      String[] split = path.split("\\.");
-      if (split.length == 1) {
-        // Primitive type, nothing to import
-        return path;
-      }
-
-      int firstClassIndex = 1;
-      while (firstClassIndex <= split.length
-          && Character.isLowerCase(split[firstClassIndex - 1].charAt(0))) {
-        firstClassIndex++;
-      }
-
-      String base = split[firstClassIndex - 1];
-      String imported = String.join(".", Arrays.copyOfRange(split, 0, firstClassIndex));
-
-      if (mImports.containsKey(base) && !mImports.get(base).equals(imported)) {
-        // Conflicting import
-        return path;
+    /**
+     * Appends a block rendered by another writer. This is the same as rendering it here unless the
+     * block imported a name that is already imported from a different package, in which case
+     * nothing is appended and false is returned.
+     */
+    public boolean append(Block block) {
+      for (Map.Entry<String, String> entry : block.imports.entrySet()) {
+        String imported = mImports.get(entry.getKey());
+        if (imported != null && !imported.equals(entry.getValue())) {
+          return false;
+        }
       }
 
-      mImports.put(base, imported);
-      return String.join(".", Arrays.copyOfRange(split, firstClassIndex - 1, split.length));
+      mImports.putAll(block.imports);
+      mOutput.append(block.lines.toString(), block.sourceMap.toString());
+      return true;
     }
 
-    public void close() {
-      // Number of lines in the header, that don't have a source map
-      int headerSize = 0;
-      try {
-        List<String> imports = new ArrayList<>(mImports.values());
-        Collections.sort(imports);
-
-        for (String imported : imports) {
-          mWriter.write("import ");
-          mWriter.write(imported);
-          mWriter.write(";\n");
-          headerSize++;
-        }
-
-        if (mImports.values().size() > 0) {
-          mWriter.write("\n");
-          headerSize++;
-        }
-
-        mWriter.write(mStringBuilder.toString());
-        mWriter.close();
-
-        for (int i = 0; i < headerSize; i++) {
-          mSourceMapWriter.write("\n");
-        }
-
-        mSourceMapWriter.write(mSourceMap.toString());
-        mSourceMapWriter.close();
-      } catch (IOException ex) {
-        throw new RuntimeException(ex);
-      }
+    public String import_(String path) {
+      return ApiDoclet.import_(mImports, path);
     }
 
     public void newLine() {
@@ -977,9 +1552,7 @@ public class ApiDoclet implements Doclet {
     }
 
     private void line(String text, int indent, String source) {
-      mStringBuilder.append(INDENTATION.repeat(Math.max(0, indent)));
-      mStringBuilder.append(text).append("\n");
-      mSourceMap.append(source).append("\n");
+      mOutput.append(INDENTATION.repeat(Math.max(0, indent)) + text + "\n", source + "\n");
     }
   }
 }
@@ -3,6 +3,9 @@
 # file, You can obtain one at http://mozilla.org/MPL/2.0/.
 
 import argparse
+import hashlib
+import shutil
+import struct
 import subprocess as sp
 import sys
 
@@ -19,27 +22,101 @@ parser.add_argument("--expected-map")
 args = parser.parse_args()
 
 output = args.out_dir + "/api.txt"
+cache_dir = args.out_dir + "/doclet-cache"
 
-sp.check_call([args.javadoc,
-    "-doclet", "org.mozilla.doclet.ApiDoclet",
-    "-docletpath", args.doclet_jar,
-    "-subpackages", "org.mozilla.test",
-    "-sourcepath", args.java_root,
-    "-root-dir", args.java_root,
-    "-skip-class-regex", "TestSkippedClass$:^org.mozilla.test.TestClass.TestSkippedClass2$",
-    "-output", output
-])
-
-result = sp.call(["diff", '-U5',
-    '--label', 'Expected', args.expected,
-    '--label', 'Actual', output])
-
-result_map = sp.call(["diff", '-U5',
-    '--label', 'Expected', args.expected_map,
-    '--label', 'Actual', output + ".map"])
-
-# result == 0 from `diff` means that the files are identical
-if result != 0 or result_map != 0:
-    print("")
-    print("ERROR: Doclet output differs from expected.")
-    sys.exit(1)
+def run_doclet(java_root, output, extra_args):
+    sp.check_call([args.javadoc,
+        "-doclet", "org.mozilla.doclet.ApiDoclet",
+        "-docletpath", args.doclet_jar,
+        "-subpackages", "org.mozilla.test",
+        "-sourcepath", java_root,
+        "-root-dir", java_root,
+        "-skip-class-regex", "TestSkippedClass$:^org.mozilla.test.TestClass.TestSkippedClass2$",
+        "-output", output
+    ] + extra_args)
+
+# Decodes the binary source map into the lines of the text one
+def read_binary_map(path):
+    with open(path, "rb") as f:
+        data = f.read()
+    magic, version, file_count = struct.unpack_from(">iii", data, 0)
+    assert magic == 0x41504d42 and version == 2
+    offset = 12
+    files = []
+    for i in range(file_count):
+        (length,) = struct.unpack_from(">i", data, offset)
+        files.append(data[offset + 4:offset + 4 + length].decode("UTF-8"))
+        offset += 4 + length
+    (line_count,) = struct.unpack_from(">i", data, offset)
+    offset += 4
+    lines = []
+    for file, line, column in struct.iter_unpack(">iii", data[offset:]):
+        lines.append("" if file == -1 else "{}:{}:{}".format(files[file], line, column))
+    assert len(lines) == line_count
+    return lines
+
+def check_binary_map(output):
+    with open(output + ".map") as f:
+        expected = f.read().splitlines()
+    if read_binary_map(output + ".map.bin") != expected:
+        print("ERROR: Binary source map differs from the text one.")
+        sys.exit(1)
+
+def check_fingerprint(output):
+    with open(output, "rb") as f:
+        expected = hashlib.sha1(f.read()).hexdigest()
+    with open(output + ".sha1") as f:
+        if f.read() != expected + "\n":
+            print("ERROR: {}.sha1 is not the SHA-1 of the api file.".format(output))
+            sys.exit(1)
+
+def check_doclet(extra_args):
+    run_doclet(args.java_root, output, extra_args)
+
+    result = sp.call(["diff", '-U5',
+        '--label', 'Expected', args.expected,
+        '--label', 'Actual', output])
+
+    result_map = sp.call(["diff", '-U5',
+        '--label', 'Expected', args.expected_map,
+        '--label', 'Actual', output + ".map"])
+
+    # result == 0 from `diff` means that the files are identical
+    if result != 0 or result_map != 0:
+        print("")
+        print("ERROR: Doclet output differs from expected. Arguments: {}".format(extra_args))
+        sys.exit(1)
+
+    check_binary_map(output)
+    check_fingerprint(output)
+
+check_doclet([])
+
+# The first run fills the cache, the second one only reads from it
+shutil.rmtree(cache_dir, ignore_errors=True)
+check_doclet(["-cache-dir", cache_dir])
+check_doclet(["-cache-dir", cache_dir])
+
+# Packages with changed sources need to be rendered again
+java_root = args.out_dir + "/fake_root"
+shutil.rmtree(java_root, ignore_errors=True)
+shutil.copytree(args.java_root, java_root)
+run_doclet(java_root, output, ["-cache-dir", cache_dir])
+
+changed = java_root + "/org/mozilla/test/testsortd/TestSort.java"
+with open(changed) as f:
+    source = f.read()
+with open(changed, "w") as f:
+    f.write(source.replace("private TestSort() {}",
+                           "private TestSort() {}\n    public void changed() {}"))
+
+expected = args.out_dir + "/api-changed.txt"
+run_doclet(java_root, expected, [])
+run_doclet(java_root, output, ["-cache-dir", cache_dir])
+
+for suffix in ["", ".map", ".sha1"]:
+    if sp.call(["diff", "-U5", "--label", "Expected", expected + suffix,
+                "--label", "Actual", output + suffix]) != 0:
+        print("")
+        print("ERROR: Cached doclet output differs after changing a source file.")
+        sys.exit(1)
@@ -0,0 +1,109 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint
+
+import groovy.json.JsonOutput
+import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+import java.util.regex.Pattern
+
+// Same check as changelog-check.py, without starting Python. The SHA-1 of the
+// API file is the one ApiDoclet writes to api.txt.sha1, so the API file is
+// not read again.
+@CacheableTask
+abstract class ApiChangelogCheckTask extends DefaultTask {
+    protected final static Pattern API_VERSION_REGEX =
+        Pattern.compile(/^\[api-version\]: ([a-f0-9]{40})$/)
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    abstract RegularFileProperty getApiFingerprintFile()
+
+    @InputFile
+    @PathSensitive(PathSensitivity.RELATIVE)
+    abstract RegularFileProperty getChangelogFile()
+
+    // NDJSON stream with the failure, if any, like changelog-check.py --result-ndjson
+    @OutputFile
+    abstract RegularFileProperty getResultFile()
+
+    @TaskAction
+    void check() {
+        def currentApiVersion = apiFingerprintFile.get().asFile.text.trim()
+        def changelog = changelogFile.get().asFile
+
+        def result = resultFile.get().asFile
+        result.parentFile.mkdirs()
+        result.text = ''
+
+        def lineNumber = 0
+        String expectedApiVersion = null
+        changelog.withReader('UTF-8') { reader ->
+            String line
+            while (expectedApiVersion == null && (line = reader.readLine()) != null) {
+                lineNumber++
+                def matcher = API_VERSION_REGEX.matcher(line)
+                if (matcher.matches()) {
+                    expectedApiVersion = matcher.group(1)
+                }
+            }
+        }
+
+        if (expectedApiVersion == null) {
+            writeFailure(result, changelog, 0, 1,
+                "The api changelog file does not have a version pin. " +
+                "Please update the file and add the following line: " +
+                "[api-version]: ${currentApiVersion}", 'missing_api_version')
+            println "ERROR: The api changelog file does not have a version pin. Please update"
+            println "the file at"
+            println ""
+            println changelog.absolutePath
+            println ""
+            println "And add the following line:"
+            println ""
+            println ">>>>"
+            println "[api-version]: ${currentApiVersion}"
+            println "<<<<"
+            throw new GradleException("The api changelog file does not have a version pin.")
+        }
+
+        if (currentApiVersion != expectedApiVersion) {
+            writeFailure(result, changelog, 14, lineNumber,
+                "The api changelog file is out of date. Please update the " +
+                "file and modify the [api-version] line as follows: " +
+                "[api-version]: ${currentApiVersion}", 'wrong_api_version')
+            println "ERROR: The api changelog file is out of date. Please update the file at"
+            println ""
+            println changelog.absolutePath
+            println ""
+            println "and then modify the [api-version] line as following:"
+            println ""
+            println ">>>>"
+            println "[api-version]: ${currentApiVersion}"
+            println "<<<<"
+            throw new GradleException("The api changelog file is out of date.")
+        }
+    }
+
+    protected static void writeFailure(File resultFile, File changelog, int column, int line,
+                                       String message, String rule) {
+        resultFile.text = JsonOutput.toJson([failures: [
+            column: column,
+            file: changelog.absolutePath,
+            line: line,
+            msg: message,
+            rule: rule,
+            error: true,
+        ]]) + '\n'
+    }
+}
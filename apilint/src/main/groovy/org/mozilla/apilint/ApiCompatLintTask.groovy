@@ -4,56 +4,125 @@
 
 package org.mozilla.apilint
 
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
+import org.gradle.api.tasks.Classpath
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
 import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.TaskAction
 import org.gradle.api.tasks.javadoc.Javadoc
-import org.mozilla.apilint.Config
+import org.gradle.workers.WorkerExecutor
 
-class ApiCompatLintTask extends Javadoc {
+import javax.inject.Inject
+
+abstract class ApiCompatLintTask extends Javadoc {
+    @OutputFile
+    abstract RegularFileProperty getOutputFile()
+
+    // Source map that the doclet writes next to outputFile, one line per line of the API
+    @OutputFile
+    Provider<File> getMapFile() {
+        outputFile.locationOnly.map { new File("${it.asFile}.map") }
+    }
+
+    // Same source map indexed by line, see BinarySourceMap in ApiDoclet.java
     @OutputFile
-    File outputFile
+    Provider<File> getBinaryMapFile() {
+        outputFile.locationOnly.map { new File("${it.asFile}.map.bin") }
+    }
+
+    // SHA-1 of outputFile, written by the doclet for changelog-check.py --api-fingerprint
+    @OutputFile
+    Provider<File> getFingerprintFile() {
+        outputFile.locationOnly.map { new File("${it.asFile}.sha1") }
+    }
 
     @Input
-    String packageFilter
+    abstract Property<String> getPackageFilter()
 
     @Input
-    List<String> skipClassesRegex
+    abstract ListProperty<String> getSkipClassesRegex()
 
     @Input
-    String rootDir
+    abstract Property<String> getRootDir()
 
     @InputFiles
-    List<File> sourcePath
+    abstract ConfigurableFileCollection getSourcePath()
+
+    // Packages rendered by previous runs, only the ones that changed are rendered again
+    @Internal
+    abstract DirectoryProperty getCacheDir()
+
+    // Runs the doclet in a long-lived worker process instead of starting javadoc every time
+    @Internal
+    abstract Property<Boolean> getInProcess()
 
-    private final static String CONFIG_NAME = 'apidoc-plugin'
+    // The apidoc-plugin jar and its dependencies
+    @Classpath
+    abstract ConfigurableFileCollection getDocletClasspath()
+
+    @Inject
+    abstract WorkerExecutor getWorkerExecutor()
+
+    ApiCompatLintTask() {
+        inProcess.convention(false)
+    }
 
     @TaskAction
     @Override
     protected void generate() {
-        def config = project.configurations.findByName(CONFIG_NAME)
-
-        if (config == null) {
-            config = project.configurations.create(CONFIG_NAME)
-            project.dependencies.add(CONFIG_NAME,
-                    "${Config.GROUP}:apidoc-plugin:${Config.API_DOC_VERSION}")
+        if (inProcess.get()) {
+            generateInProcess()
+            return
         }
 
         options.doclet = "org.mozilla.doclet.ApiDoclet"
-        options.docletpath = config.files.asType(List)
+        options.docletpath = docletClasspath.files.asType(List)
 
         // Gradle sends -notimestamp automatically which is not compatible to
         // doclets, so we have to work around it here,
         // see: https://github.com/gradle/gradle/issues/11898
         options.noTimestamp(false)
 
-        options.addStringOption('output', outputFile.absolutePath)
-        options.addStringOption('subpackages', packageFilter)
-        options.addPathOption('sourcepath').setValue(sourcePath)
-        options.addStringOption('root-dir', rootDir)
-        options.addStringOption('skip-class-regex', String.join(":", skipClassesRegex))
+        options.addStringOption('output', outputFile.get().asFile.absolutePath)
+        options.addStringOption('subpackages', packageFilter.get())
+        options.addPathOption('sourcepath').setValue(sourcePath.files.asType(List))
+        options.addStringOption('root-dir', rootDir.get())
+        options.addStringOption('skip-class-regex', String.join(":", skipClassesRegex.get()))
+        if (cacheDir.present) {
+            options.addStringOption('cache-dir', cacheDir.get().asFile.absolutePath)
+        }
 
         super.generate()
     }
+
+    protected void generateInProcess() {
+        List<String> arguments = [
+            '-output', outputFile.get().asFile.absolutePath,
+            '-subpackages', packageFilter.get(),
+            '-sourcepath', sourcePath.files.join(File.pathSeparator),
+            '-root-dir', rootDir.get(),
+            '-skip-class-regex', String.join(":", skipClassesRegex.get()),
+        ]
+        if (!classpath.empty) {
+            arguments += ['-classpath', classpath.asPath]
+        }
+        if (cacheDir.present) {
+            arguments += ['-cache-dir', cacheDir.get().asFile.absolutePath]
+        }
+
+        def queue = workerExecutor.processIsolation { spec ->
+            spec.classpath.from(docletClasspath)
+        }
+        queue.submit(ApiDocletWorkAction) { parameters ->
+            parameters.options.set(arguments)
+            parameters.sourceFiles.from(source)
+        }
+    }
 }
@@ -0,0 +1,44 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint
+
+import org.gradle.api.GradleException
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.provider.ListProperty
+import org.gradle.workers.WorkAction
+import org.gradle.workers.WorkParameters
+
+import javax.tools.ToolProvider
+
+/**
+ * Runs ApiDoclet through the javax.tools DocumentationTool API. The worker process outlives a
+ * single run, so javadoc and the doclet are already loaded and warmed up for the next variant.
+ */
+abstract class ApiDocletWorkAction implements WorkAction<Parameters> {
+    static interface Parameters extends WorkParameters {
+        ListProperty<String> getOptions()
+        ConfigurableFileCollection getSourceFiles()
+    }
+
+    private final static String DOCLET = 'org.mozilla.doclet.ApiDoclet'
+
+    @Override
+    void execute() {
+        def doclet = Class.forName(DOCLET, true, Thread.currentThread().contextClassLoader)
+        def tool = ToolProvider.systemDocumentationTool
+
+        def fileManager = tool.getStandardFileManager(null, null, null)
+        try {
+            def sources = fileManager.getJavaFileObjectsFromFiles(parameters.sourceFiles.files)
+            def task = tool.getTask(null, fileManager, null, doclet,
+                    parameters.options.get(), sources)
+            if (!task.call()) {
+                throw new GradleException("${DOCLET} failed, see the javadoc errors above.")
+            }
+        } finally {
+            fileManager.close()
+        }
+    }
+}
@@ -7,10 +7,13 @@ package org.mozilla.apilint
 import org.gradle.api.GradleException
 import org.gradle.api.Plugin
 import org.gradle.api.Project
+import org.gradle.api.provider.Provider
 import org.gradle.api.tasks.Copy
-import org.gradle.api.tasks.Exec
+import org.gradle.api.tasks.TaskProvider
 
 class ApiLintPlugin implements Plugin<Project> {
+    private final static String DOCLET_CONFIG_NAME = 'apidoc-plugin'
+
     void apply(Project project) {
         def extension = project.extensions.create('apiLint', ApiLintPluginExtension)
 
@@ -20,143 +23,220 @@ class ApiLintPlugin implements Plugin<Project> {
             throw new GradleException('You need the Android Library plugin to run ApiLint.')
         }
 
+        // The doclet is only resolved when an apiGenerate task runs
+        def docletConfig = project.configurations.maybeCreate(DOCLET_CONFIG_NAME)
+        docletConfig.defaultDependencies { dependencies ->
+            dependencies.add(project.dependencies.create(
+                    "${Config.GROUP}:apidoc-plugin:${Config.API_DOC_VERSION}"))
+        }
+
+        // Only registered with aggregateLint, shared by all variants
+        TaskProvider<ApiLintVariantsTask> apiLintVariants = null
+
         // TODO: support applications
         project.android.libraryVariants.all { variant ->
             def name = variant.name.capitalize()
-            def apiFileName = "${variant.javaCompileProvider.get().destinationDirectory.get()}/${extension.apiOutputFileName}"
-            def apiFile = project.file(apiFileName)
-            def variantClasspath = variant.javaCompileProvider.get().classpath
+            def javaCompile = variant.javaCompileProvider
+            def apiFile = javaCompile.flatMap {
+                it.destinationDirectory.file(extension.apiOutputFileName)
+            }
+            // Parsed APIs shared by apiLintSingle and apiCompatLint
+            def modelCacheDir = javaCompile.flatMap { it.destinationDirectory.dir('apilint-model') }
+            // Failures of each class, only the classes that changed are examined again
+            def classCacheDir = javaCompile.flatMap { it.destinationDirectory.dir('apilint-classes') }
+            def cacheArgs = extension.incrementalLint.flatMap { incremental ->
+                incremental ? optionArgs('--class-cache', filePath(classCacheDir))
+                            : optionArgs('--model-cache', filePath(modelCacheDir))
+            }
+            // Each lint task appends to its own NDJSON stream, apiLintResult merges them
+            def resultDir = project.layout.buildDirectory.dir("apilint/${variant.name}")
+            def lintSingleResult = resultDir.map { it.file('apiLintSingle.ndjson') }
+            def compatLintResult = resultDir.map { it.file('apiCompatLint.ndjson') }
 
-            def currentApiFile = project.file(extension.currentApiRelativeFilePath)
+            def currentApiFile = project.layout.projectDirectory.file(
+                    extension.currentApiRelativeFilePath)
 
-            def apiGenerate = project.task("apiGenerate${name}", type: ApiCompatLintTask) {
+            def apiGenerate = project.tasks.register("apiGenerate${name}", ApiCompatLintTask) {
                 description = "Generates API file for build variant ${name}"
-                doFirst {
-                    classpath = variantClasspath
-                }
+                classpath = project.files(javaCompile.map { it.classpath })
 
                 source = variant.sourceSets.collect({ it.java.srcDirs })
                 exclude '**/R.java'
                 include '**/**.java'
 
-                sourcePath =
-                    variant.sourceSets.collect({ it.java.srcDirs }).flatten() +
-                    variant.generateBuildConfigProvider.get().sourceOutputDir.asFile.get() +
-                    variant.aidlCompileProvider.get().sourceOutputDir.asFile.get()
+                sourcePath.from(variant.sourceSets.collect({ it.java.srcDirs }).flatten())
+                sourcePath.from(variant.generateBuildConfigProvider.flatMap { it.sourceOutputDir })
+                sourcePath.from(variant.aidlCompileProvider.flatMap { it.sourceOutputDir })
 
-                rootDir = project.rootDir
-                outputFile = apiFile
-                packageFilter = extension.packageFilter
-                skipClassesRegex = extension.skipClassesRegex
+                rootDir.set(project.rootDir.toString())
+                outputFile.set(apiFile)
+                packageFilter.set(extension.packageFilter)
+                skipClassesRegex.set(extension.skipClassesRegex)
+                inProcess.set(extension.inProcessApiGenerate)
+                def docletCacheDir = project.layout.buildDirectory
+                    .dir("apilint/${variant.name}/doclet-cache")
+                cacheDir.set(extension.incrementalApiGenerate.flatMap { incremental ->
+                    incremental ? docletCacheDir : project.provider { null }
+                })
+                docletClasspath.from(docletConfig)
                 destinationDir = new File(destinationDir, variant.baseName)
+
+                dependsOn javaCompile
+                dependsOn variant.aidlCompileProvider
+                dependsOn variant.generateBuildConfigProvider
             }
-            apiGenerate.dependsOn variant.javaCompileProvider.get()
-            apiGenerate.dependsOn variant.aidlCompileProvider.get()
-            apiGenerate.dependsOn variant.generateBuildConfigProvider.get()
 
-            def apiCompatLint = project.task("apiCompatLint${name}", type: PythonExec) {
+            def apiMapFile = project.layout.file(apiGenerate.flatMap { it.binaryMapFile })
+
+            def apiCompatLint = project.tasks.register("apiCompatLint${name}", PythonExec) {
                 description = "Runs API compatibility lint checks for variant ${name}"
-                workingDir '.'
-                scriptPath = 'apilint.py'
-                args '--show-noticed'
-                args apiFile
-                args currentApiFile
-                args '--result-json'
-                args project.file(
-                        "${variant.javaCompileProvider.get().destinationDirectory.get()}/${extension.jsonResultFileName}")
-                args '--append-json'
-                args '--api-map'
-                args project.file(apiFileName + ".map")
-                if (extension.deprecationAnnotation != null) {
-                    args '--deprecation-annotation'
-                    args extension.deprecationAnnotation
-                }
-                if (extension.libraryVersion != null) {
-                    args '--library-version'
-                    args extension.libraryVersion
-                }
-            }
+                configurePython(project, extension, it, 'apilint.py')
+                scriptArgs.add('--show-noticed')
+                scriptArgs.add(filePath(apiFile))
+                scriptArgs.add(filePath(currentApiFile))
+                inputFiles apiFile, currentApiFile, apiMapFile
+                resultFile.set(compatLintResult)
+                scriptArgs.add('--api-map')
+                scriptArgs.add(filePath(apiMapFile))
+                scriptArgs.addAll(cacheArgs)
+                scriptArgs.addAll(optionArgs('--jobs', extension.lintJobs))
+                profile.set(extension.lintProfile)
+                scriptArgs.addAll(optionArgs('--deprecation-annotation', extension.deprecationAnnotation))
+                scriptArgs.addAll(optionArgs('--library-version', extension.libraryVersion))
 
-            apiCompatLint.dependsOn apiGenerate
+                dependsOn apiGenerate
+            }
 
-            def apiLintSingle = project.task("apiLintSingle${name}", type: PythonExec) {
+            def apiLintSingle = project.tasks.register("apiLintSingle${name}", PythonExec) {
                 description = "Runs API lint checks for variant ${name}"
-                workingDir '.'
-                scriptPath = 'apilint.py'
-                args apiFile
-                args '--result-json'
-                args project.file(
-                        "${variant.javaCompileProvider.get().destinationDirectory.get()}/${extension.jsonResultFileName}")
-                if (extension.lintFilters != null) {
-                    args '--filter-errors'
-                    args extension.lintFilters
-                }
-                if (extension.allowedPackages != null) {
-                    args '--allowed-packages'
-                    args extension.allowedPackages
-                }
-                if (extension.deprecationAnnotation != null) {
-                    args '--deprecation-annotation'
-                    args extension.deprecationAnnotation
-                }
-                if (extension.libraryVersion != null) {
-                    args '--library-version'
-                    args extension.libraryVersion
-                }
-                args '--api-map'
-                args project.file(apiFileName + ".map")
+                configurePython(project, extension, it, 'apilint.py')
+                scriptArgs.add(filePath(apiFile))
+                inputFiles apiFile, apiMapFile
+                resultFile.set(lintSingleResult)
+                scriptArgs.addAll(optionArgs('--filter-errors', extension.lintFilters))
+                scriptArgs.addAll(optionArgs('--allowed-packages', extension.allowedPackages))
+                scriptArgs.addAll(optionArgs('--deprecation-annotation', extension.deprecationAnnotation))
+                scriptArgs.addAll(optionArgs('--library-version', extension.libraryVersion))
+                scriptArgs.add('--api-map')
+                scriptArgs.add(filePath(apiMapFile))
+                scriptArgs.addAll(cacheArgs)
+                scriptArgs.addAll(optionArgs('--jobs', extension.lintJobs))
+                profile.set(extension.lintProfile)
+
+                dependsOn apiGenerate
             }
 
-            apiCompatLint.dependsOn apiLintSingle
-            apiLintSingle.dependsOn apiGenerate
+            apiCompatLint.configure { dependsOn apiLintSingle }
 
-            def apiLint = project.task("apiLint${name}") {
+            def apiLint = project.tasks.register("apiLint${name}") {
                 description = "Runs API lint checks for variant ${name}"
                 group = 'Verification'
             }
 
-            if (extension.changelogFileName) {
-                def apiChangelogCheck = project.task("apiChangelogCheck${name}", type: PythonExec) {
+            // Plain files rather than the task outputs, which would make it depend on the tasks
+            def apiLintResult = project.tasks.register("apiLintResult${name}", MergeResultsTask) {
+                description = "Merges the API lint results for variant ${name}"
+                resultFiles.from(lintSingleResult, compatLintResult)
+                outputFile.set(javaCompile.flatMap {
+                    it.destinationDirectory.file(extension.jsonResultFileName)
+                })
+            }
+
+            // Finalizers, so that the results are merged when lint fails too. apiLint must not
+            // depend on apiLintResult, Gradle does not start dependencies after a failure.
+            [apiLintSingle, apiCompatLint].each {
+                it.configure { finalizedBy apiLintResult }
+            }
+            apiLintResult.configure { mustRunAfter apiLintSingle, apiCompatLint }
+
+            // A single apilint.py run replaces apiLintSingle and apiCompatLint of all variants.
+            // Read here because it decides which tasks exist, see the README.
+            if (extension.aggregateLint.get()) {
+                if (apiLintVariants == null) {
+                    apiLintVariants = project.tasks.register('apiLintVariants', ApiLintVariantsTask) {
+                        description = "Runs API lint checks for all variants at once"
+                        configurePython(project, extension, it, 'apilint.py')
+                        variantsFile.set(project.layout.buildDirectory
+                            .file('apilint/variants-args.json'))
+                        scriptArgs.add('--variants')
+                        scriptArgs.add(filePath(variantsFile))
+                        resultFile.set(project.layout.buildDirectory.file('apilint/variants.json'))
+                        profile.set(extension.lintProfile)
+                    }
+                }
+
+                def aggregate = apiLintVariants
+                aggregate.configure { task ->
+                    task.variant(apiLintSingle)
+                    task.variant(apiCompatLint)
+                    task.dependsOn apiGenerate
+                    task.finalizedBy apiLintResult
+                }
+                [apiLintSingle, apiCompatLint].each {
+                    it.configure {
+                        enabled = false
+                        // So that the tasks that depend on them still get their result files
+                        dependsOn aggregate
+                    }
+                }
+                apiLintResult.configure { mustRunAfter aggregate }
+            }
+
+            if (extension.changelogFileName.present) {
+                def changelogResult = resultDir.map { it.file('apiChangelogCheck.ndjson') }
+                def changelogFile = project.layout.projectDirectory.file(
+                        extension.changelogFileName)
+
+                def apiChangelogCheck = project.tasks.register("apiChangelogCheck${name}",
+                        ApiChangelogCheckTask) { task ->
                     description = "Checks that the API changelog has been updated."
                     group = 'Verification'
-                    workingDir '.'
-                    scriptPath = 'changelog-check.py'
-                    args '--api-file'
-                    args apiFile
-                    args '--changelog-file'
-                    args project.file(extension.changelogFileName)
-                    args '--result-json'
-                    args project.file(
-                            "${variant.javaCompileProvider.get().destinationDirectory.get()}/${extension.jsonResultFileName}")
+                    task.apiFingerprintFile.set(project.layout.file(
+                        apiGenerate.flatMap { it.fingerprintFile }))
+                    task.changelogFile.set(changelogFile)
+                    task.resultFile.set(changelogResult)
+                    finalizedBy apiLintResult
+
+                    dependsOn apiGenerate
+                    dependsOn apiCompatLint
                 }
 
-                apiChangelogCheck.dependsOn apiGenerate
-                apiChangelogCheck.dependsOn apiCompatLint
-                apiLint.dependsOn apiChangelogCheck
+                apiLintResult.configure {
+                    resultFiles.from(changelogResult)
+                    mustRunAfter apiChangelogCheck
+                }
+                apiLint.configure { dependsOn apiChangelogCheck }
             } else {
-                apiLint.dependsOn apiLintSingle
+                apiLint.configure { dependsOn apiLintSingle }
             }
 
-            project.tasks.check.dependsOn apiLint
+            project.tasks.named('check').configure { dependsOn apiLint }
 
-            def apiDiff = project.task("apiDiff${name}", type: Exec) {
-                description = "Prints the diff between the existing API and the local API."
-                workingDir '.'
-                commandLine 'diff'
-                args '-U5'
-                args currentApiFile
-                args '--label', 'Existing API'
-                args apiFile
-                args '--label', 'Local API'
+            def apiDiff = project.tasks.register("apiDiff${name}", PythonExec) {
+                description = "Prints the changes between the existing API and the local API."
+                configurePython(project, extension, it, 'apilint.py')
+                scriptArgs.add('--structural-diff')
+                scriptArgs.add(filePath(apiFile))
+                scriptArgs.add(filePath(currentApiFile))
+                scriptArgs.add('--api-map')
+                scriptArgs.add(filePath(apiMapFile))
+                inputFiles apiFile, currentApiFile, apiMapFile
+                resultFile.set(resultDir.map { it.file('apiDiff.json') })
 
-                // diff exit value is != 0 if the files are different
+                // The exit value is != 0 if the APIs are different
                 ignoreExitValue = true
+                // Only useful for its output
+                outputs.upToDateWhen { false }
+                outputs.doNotCacheIf('The diff is printed') { true }
+
+                dependsOn apiGenerate
             }
 
-            def apiLintHelp = project.task("apiLintHelp${name}") {
+            def apiLintHelp = project.tasks.register("apiLintHelp${name}") {
                 description = "Prints help for when an API change is detected."
+                // The aggregate task writes the same result file
                 onlyIf {
-                    apiCompatLint.state.failure != null
+                    ResultStream.merge([compatLintResult.get().asFile]).failure
                 }
                 doLast {
                     println ""
@@ -166,20 +246,52 @@ class ApiLintPlugin implements Plugin<Project> {
                     println ""
                     println "to update the API file."
                 }
+
+                dependsOn apiDiff
             }
 
-            apiLintHelp.dependsOn apiDiff
-            apiCompatLint.finalizedBy apiLintHelp
+            apiCompatLint.configure { finalizedBy apiLintHelp }
+            if (apiLintVariants != null) {
+                apiLintVariants.configure { finalizedBy apiLintHelp }
+            }
 
-            def apiUpdate = project.task("apiUpdateFile${name}", type: Copy) {
+            def apiOutputFileName = extension.apiOutputFileName
+            project.tasks.register("apiUpdateFile${name}", Copy) {
                 description = "Updates the API file from the local one for variant ${name}"
                 group = 'Verification'
                 from apiFile
-                into currentApiFile.getParent()
-                rename { apiFile.getName() }
+                into currentApiFile.map { it.asFile.parentFile }
+                rename { apiOutputFileName.get() }
+
+                dependsOn apiGenerate
             }
+        }
+    }
 
-            apiUpdate.dependsOn apiGenerate
+    // Settings shared by the tasks that run a script
+    private static void configurePython(Project project, ApiLintPluginExtension extension,
+                                        PythonExec task, String script) {
+        task.workingDir '.'
+        task.scriptPath = script
+        // Read here because the service is registered with the task, see the README
+        if (extension.lintServer.get()) {
+            task.setLintServer(project.gradle.sharedServices.registerIfAbsent(
+                    'apiLintServer', LintServer) { spec ->
+                spec.parameters.pythonCommand.set('python3')
+                spec.parameters.gradleUserHome.set(project.gradle.gradleUserHomeDir)
+                // One lint-server.py process per concurrent usage
+                spec.maxParallelUsages.set(project.gradle.startParameter.maxWorkerCount)
+            })
         }
+        task.useWorkers.set(extension.lintWorkers)
+    }
+
+    private static Provider<String> filePath(Provider<?> file) {
+        file.map { it.asFile.absolutePath }
+    }
+
+    // Option followed by its values, nothing when value is not set
+    private static Provider<List<String>> optionArgs(String name, Provider<?> value) {
+        value.map { [name] + (it instanceof Iterable ? it : [it])*.toString() }.orElse([])
     }
 }
@@ -2,16 +2,47 @@
  * License, v. 2.0. If a copy of the MPL was not distributed with this
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 
-class ApiLintPluginExtension {
-    String packageFilter = '.' // By default all packages are part of the api
-    String apiOutputFileName = 'api.txt'
-    String currentApiRelativeFilePath = 'api.txt'
-    String jsonResultFileName = 'apilint-result.json'
-    List<String> skipClassesRegex = []
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
 
-    String changelogFileName
-    List<String> lintFilters
-    List<String> allowedPackages
-    String deprecationAnnotation
-    Integer libraryVersion
+abstract class ApiLintPluginExtension {
+    abstract Property<String> getPackageFilter()
+    abstract Property<String> getApiOutputFileName()
+    abstract Property<String> getCurrentApiRelativeFilePath()
+    abstract Property<String> getJsonResultFileName()
+    abstract ListProperty<String> getSkipClassesRegex()
+
+    abstract Property<String> getChangelogFileName()
+    abstract ListProperty<String> getLintFilters()
+    abstract ListProperty<String> getAllowedPackages()
+    abstract Property<String> getDeprecationAnnotation()
+    abstract Property<Integer> getLibraryVersion()
+    abstract Property<Boolean> getIncrementalApiGenerate()
+    abstract Property<Boolean> getInProcessApiGenerate()
+    abstract Property<Boolean> getLintServer()
+    abstract Property<Integer> getLintJobs()
+    abstract Property<Boolean> getLintProfile()
+    abstract Property<Boolean> getAggregateLint()
+    abstract Property<Boolean> getLintWorkers()
+    abstract Property<Boolean> getIncrementalLint()
+
+    ApiLintPluginExtension() {
+        packageFilter.convention('.') // By default all packages are part of the api
+        apiOutputFileName.convention('api.txt')
+        currentApiRelativeFilePath.convention('api.txt')
+        jsonResultFileName.convention('apilint-result.json')
+        skipClassesRegex.convention([])
+
+        // Not set means that the option is not passed to apilint.py at all
+        lintFilters.value((Iterable<String>) null)
+        allowedPackages.value((Iterable<String>) null)
+
+        incrementalApiGenerate.convention(false)
+        inProcessApiGenerate.convention(false)
+        lintServer.convention(false)
+        lintProfile.convention(false)
+        aggregateLint.convention(false)
+        lintWorkers.convention(false)
+        incrementalLint.convention(false)
+    }
 }
@@ -0,0 +1,72 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint
+
+import groovy.json.JsonOutput
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.OutputFiles
+import org.gradle.api.tasks.TaskAction
+import org.gradle.api.tasks.TaskProvider
+
+// Runs the apilint.py tasks of all variants in one apilint.py --variants
+// invocation. Variants with identical api.txt files are only linted once, and
+// every task still gets its own result file.
+@CacheableTask
+abstract class ApiLintVariantsTask extends PythonExec {
+    // Written before running apilint.py, should be passed to --variants
+    @Internal
+    abstract RegularFileProperty getVariantsFile()
+
+    // Name, arguments and result file of each variant, resolved when the task runs
+    private final List<Map> variants = []
+
+    // Runs task as part of this one, task should be disabled. Only the
+    // scriptArgs of task are passed, so that they stay lazy.
+    void variant(TaskProvider<? extends PythonExec> task) {
+        variants << [
+            name: task.name,
+            args: task.flatMap { it.scriptArgs },
+            resultFile: task.flatMap { it.resultFile },
+        ]
+        // Realizes task only when the inputs are resolved. Not task.map, which
+        // would depend on task, and task depends on this one. flatMap only
+        // depends on the tasks that produce the files.
+        inputFiles(task.flatMap { it.inputFiles.elements })
+    }
+
+    protected List<Map> resolvedVariants() {
+        variants.collect {
+            [
+                name: it.name,
+                args: it.args.get() + [ResultStream.option(it.resultFile.get().asFile),
+                                       it.resultFile.get().asFile.absolutePath],
+            ]
+        }
+    }
+
+    @Input
+    List<Map> getRelativeVariants() {
+        resolvedVariants().collect { [name: it.name, args: relativize(it.args)] }
+    }
+
+    @OutputFiles
+    List<File> getVariantResultFiles() {
+        variants.collect { it.resultFile.get().asFile }
+    }
+
+    @TaskAction
+    @Override
+    void exec() {
+        def file = variantsFile.get().asFile
+        file.parentFile.mkdirs()
+        file.text = JsonOutput.toJson(resolvedVariants())
+        // The NDJSON streams are appended to
+        variantResultFiles.each { createEmptyResultFile(it) }
+        super.exec()
+    }
+}
@@ -0,0 +1,40 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint
+
+import groovy.json.JsonOutput
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+// Merges the result files of the lint tasks of a variant into the file
+// configured by jsonResultFileName, in the format apilint.py writes. The lint
+// tasks append to their own NDJSON stream, so this is the only place where
+// results are read back.
+@CacheableTask
+abstract class MergeResultsTask extends DefaultTask {
+    // Merged in this order, the ones that don't exist are skipped
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    abstract ConfigurableFileCollection getResultFiles()
+
+    @OutputFile
+    abstract RegularFileProperty getOutputFile()
+
+    @TaskAction
+    void merge() {
+        def merged = ResultStream.merge(resultFiles.files)
+
+        def file = outputFile.get().asFile
+        file.parentFile.mkdirs()
+        file.text = JsonOutput.toJson(merged)
+    }
+}
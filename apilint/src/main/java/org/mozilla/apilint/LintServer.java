@@ -0,0 +1,159 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+import org.gradle.api.GradleException;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps lint-server.py processes running for the duration of the build, so that the lint tasks
+ * of every variant don't have to start a new Python interpreter. Each process runs one script at a
+ * time, so tasks that run concurrently get a process each.
+ */
+public abstract class LintServer implements BuildService<LintServer.Parameters>, AutoCloseable {
+    public interface Parameters extends BuildServiceParameters {
+        /** Path to the python command used to execute the server */
+        Property<String> getPythonCommand();
+
+        /** Where {@link ScriptCache} extracts the scripts */
+        Property<File> getGradleUserHome();
+    }
+
+    public static class Result {
+        public final int exitValue;
+        public final String stdout;
+        public final String stderr;
+
+        Result(int exitValue, String stdout, String stderr) {
+            this.exitValue = exitValue;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+    }
+
+    private final Deque<Server> mIdle = new ArrayDeque<>();
+
+    /**
+     * Runs script with args as if it was executed with python from workingDir, on a server that
+     * is not running another script. Gradle limits how many tasks use the service at the same
+     * time, and so how many servers are started.
+     */
+    public Result run(File script, List<String> args, File workingDir) {
+        Server server;
+        synchronized (mIdle) {
+            server = mIdle.poll();
+        }
+
+        boolean reusable = false;
+        try {
+            if (server == null) {
+                server = new Server(start());
+            }
+            Result result = server.run(script, args, workingDir);
+            reusable = true;
+            return result;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (reusable) {
+                synchronized (mIdle) {
+                    mIdle.push(server);
+                }
+            } else if (server != null) {
+                // Its state is unknown, e.g. the response could still be coming
+                server.mProcess.destroy();
+            }
+        }
+    }
+
+    private Process start() throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(ScriptCache.commandLine(
+                getParameters().getPythonCommand().get(),
+                getParameters().getGradleUserHome().get(),
+                "lint-server.py"));
+        builder.environment().put("PYTHONIOENCODING", "utf-8");
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Server> servers;
+        synchronized (mIdle) {
+            servers = new ArrayList<>(mIdle);
+            mIdle.clear();
+        }
+
+        for (Server server : servers) {
+            server.close();
+        }
+    }
+
+    /** A lint-server.py process, which runs one script at a time. */
+    private static class Server {
+        final Process mProcess;
+        final BufferedWriter mRequests;
+        final BufferedReader mResponses;
+
+        Server(Process process) {
+            mProcess = process;
+            mRequests = new BufferedWriter(
+                    new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            mResponses = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        Result run(File script, List<String> args, File workingDir) throws IOException {
+            Map<String, Object> request = Map.of(
+                    "script", script.getAbsolutePath(),
+                    "args", args,
+                    "cwd", workingDir.getAbsolutePath());
+            mRequests.write(JsonOutput.toJson(request));
+            mRequests.newLine();
+            mRequests.flush();
+
+            String response = mResponses.readLine();
+            if (response == null) {
+                throw new GradleException("lint-server.py exited unexpectedly.");
+            }
+
+            Map<?, ?> result = (Map<?, ?>) new JsonSlurper().parseText(response);
+            return new Result(
+                    ((Number) result.get("exit")).intValue(),
+                    (String) result.get("stdout"),
+                    (String) result.get("stderr"));
+        }
+
+        void close() throws IOException {
+            try {
+                // The server exits when there are no more requests
+                mRequests.close();
+                mProcess.waitFor();
+            } catch (InterruptedException ex) {
+                // Stop waiting, the servers that are left are destroyed right away
+                Thread.currentThread().interrupt();
+            } finally {
+                mProcess.destroy();
+            }
+        }
+    }
+}
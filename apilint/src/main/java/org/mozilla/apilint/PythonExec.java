@@ -4,44 +4,301 @@
 
 package org.mozilla.apilint;
 
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Exec;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.workers.WorkerExecutor;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
-/** Executes a Python script embedded in the resources. */
-public class PythonExec extends Exec {
+import javax.inject.Inject;
+
+/**
+ * Executes a Python script embedded in the resources.
+ *
+ * <p>The task is up to date, and its result can come from the build cache, when the script, its
+ * arguments and the files declared with {@link #inputFiles} did not change. The arguments are
+ * usually given through {@link #getScriptArgs}, which can hold providers, e.g. of the outputs of
+ * tasks that are not configured yet.
+ *
+ * <p>With {@link #getUseWorkers}, the script runs in a Gradle worker instead of blocking the task
+ * thread, so that the lint tasks of independent variants and modules overlap within the
+ * max-workers limit.
+ */
+@CacheableTask
+public abstract class PythonExec extends Exec {
     /** Path to the script to execute */
     String mScriptPath;
 
     /** Path to the python command used to execute the script */
     String mPythonCommand = "python3";
 
+    /** Server that runs the script instead of a new python process, optional */
+    Provider<LintServer> mLintServer;
+
+    /** Arguments under this directory are tracked relative to it, so that the cache is shared */
+    final File mRootDir;
+
+    /** Where {@link ScriptCache} extracts the scripts */
+    final File mGradleUserHome;
+
+    /** Number of rules and classes listed in the profile summary */
+    private static final int PROFILE_SUMMARY_SIZE = 10;
+
+    public PythonExec() {
+        mRootDir = getProject().getRootDir();
+        mGradleUserHome = getProject().getGradle().getGradleUserHomeDir();
+        getProfile().convention(false);
+        getUseWorkers().convention(false);
+    }
+
     @TaskAction
     public void exec() {
-        List<String> args = getArgs();
+        List<String> args = allArgs();
+        File resultFile = getResultFile().getAsFile().getOrNull();
+        if (resultFile != null) {
+            args.add(ResultStream.option(resultFile));
+            args.add(resultFile.getAbsolutePath());
+            createEmptyResultFile(resultFile);
+        }
+        boolean profile = getProfile().get();
+        if (profile) {
+            args.add("--profile");
+        }
 
-        File tempFile = copyResourceToTemp(mScriptPath);
+        if (mLintServer == null && getUseWorkers().get()) {
+            // The worker logs the profile once the script is done
+            execInWorker(args, resultFile);
+            return;
+        }
 
         try {
-            commandLine(mPythonCommand, tempFile);
+            if (mLintServer != null) {
+                execOnLintServer(
+                        new File(ScriptCache.directory(mGradleUserHome), mScriptPath), args);
+                return;
+            }
+
+            commandLine(ScriptCache.commandLine(mPythonCommand, mGradleUserHome, mScriptPath));
             // Calling commandLine destroys the args param so we need to restore it here.
             args(args);
 
             super.exec();
         } finally {
-            // Clean-up the temporary file
-            tempFile.delete();
+            if (profile) {
+                logProfile(getLogger(), mScriptPath, resultFile);
+            }
+        }
+    }
+
+    private void execInWorker(List<String> args, File resultFile) {
+        List<String> commandLine = new ArrayList<>(
+                ScriptCache.commandLine(mPythonCommand, mGradleUserHome, mScriptPath));
+        commandLine.addAll(args);
+
+        getWorkerExecutor().noIsolation().submit(PythonWorkAction.class, parameters -> {
+            parameters.getCommandLine().set(commandLine);
+            parameters.getWorkingDir().set(getWorkingDir());
+            parameters.getIgnoreExitValue().set(isIgnoreExitValue());
+            parameters.getScriptPath().set(mScriptPath);
+            if (getProfile().get()) {
+                parameters.getProfileResultFile().set(resultFile);
+            }
+        });
+    }
+
+    @Inject
+    public abstract WorkerExecutor getWorkerExecutor();
+
+    /** Starts from an empty file so that no result of a previous run is kept. */
+    static void createEmptyResultFile(File resultFile) {
+        try {
+            Files.createDirectories(resultFile.getParentFile().toPath());
+            Files.write(resultFile.toPath(), new byte[0]);
+        } catch (IOException ex) {
+            throw new GradleException("Could not create " + resultFile, ex);
+        }
+    }
+
+    /** Logs the metrics the script added to the result file. */
+    static void logProfile(Logger logger, String scriptPath, File resultFile) {
+        try {
+            String summary = profileSummary(scriptPath, resultFile);
+            if (summary != null) {
+                logger.lifecycle(summary);
+            }
+        } catch (RuntimeException ex) {
+            // Never hide the result of the script behind the summary
+            logger.warn("Could not read the profile: " + ex.getMessage());
+        }
+    }
+
+    private static String profileSummary(String scriptPath, File resultFile) {
+        if (resultFile == null || !resultFile.isFile()) {
+            return null;
+        }
+
+        List<?> runs = (List<?>) ResultStream.merge(Collections.singletonList(resultFile))
+                .get("metrics");
+        if (runs == null || runs.isEmpty()) {
+            return null;
+        }
+
+        // The last run is the one that just finished
+        Map<?, ?> metrics = (Map<?, ?>) runs.get(runs.size() - 1);
+        Map<?, ?> classes = (Map<?, ?>) metrics.get("classes");
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("%s profile (%s): %.3fs, %s classes, peak RSS %s%n",
+                scriptPath, metrics.get("mode"), toDouble(metrics.get("time")),
+                classes.get("count"),
+                metrics.get("peak_rss_kb") != null
+                        ? metrics.get("peak_rss_kb") + " KB" : "unknown"));
+
+        appendTable(summary, "Phase", (Map<?, ?>) metrics.get("phases"), Integer.MAX_VALUE);
+        appendTable(summary, "Rule", (Map<?, ?>) metrics.get("rules"), PROFILE_SUMMARY_SIZE);
+
+        summary.append(String.format("  %-60s %10s%n", "Slowest class", "Time"));
+        List<?> slowest = (List<?>) classes.get("slowest");
+        for (Object entry : slowest.subList(0, Math.min(PROFILE_SUMMARY_SIZE, slowest.size()))) {
+            Map<?, ?> clazz = (Map<?, ?>) entry;
+            summary.append(String.format("  %-60s %9.3fs%n",
+                    clazz.get("class"), toDouble(clazz.get("time"))));
+        }
+
+        return summary.toString();
+    }
+
+    /** Appends the limit entries of table that took the longest. */
+    private static void appendTable(StringBuilder summary, String title, Map<?, ?> table,
+                                    int limit) {
+        summary.append(String.format("  %-49s %10s %10s%n", title, "Calls", "Time"));
+        table.entrySet().stream()
+                .sorted(Comparator.comparingDouble(
+                        e -> -toDouble(((Map<?, ?>) e.getValue()).get("time"))))
+                .limit(limit)
+                .forEach(e -> {
+                    Map<?, ?> record = (Map<?, ?>) e.getValue();
+                    summary.append(String.format("  %-49s %10s %9.3fs%n",
+                            e.getKey(), record.get("calls"), toDouble(record.get("time"))));
+                });
+    }
+
+    private static double toDouble(Object number) {
+        return ((Number) number).doubleValue();
+    }
+
+    private void execOnLintServer(File script, List<String> args) {
+        LintServer.Result result = mLintServer.get().run(script, args, getWorkingDir());
+
+        System.out.print(result.stdout);
+        System.err.print(result.stderr);
+
+        if (result.exitValue != 0 && !isIgnoreExitValue()) {
+            throw new GradleException(String.format(
+                    "Process '%s %s' finished with non-zero exit value %d",
+                    mPythonCommand, mScriptPath, result.exitValue));
         }
     }
 
+    public void setLintServer(Provider<LintServer> lintServer) {
+        mLintServer = lintServer;
+        usesService(lintServer);
+    }
+
+    @Internal
+    public Provider<LintServer> getLintServer() {
+        return mLintServer;
+    }
+
+    /**
+     * The arguments are tracked by {@link #getRelativeArgs}, so that absolute paths do not make
+     * the task out of date on another checkout.
+     */
+    @Internal
+    @Override
+    public List<String> getArgs() {
+        return super.getArgs();
+    }
+
+    /** Arguments passed to the script after {@link #getArgs}, resolved when the task runs */
+    @Internal
+    public abstract ListProperty<String> getScriptArgs();
+
+    /** Returns {@link #getArgs} followed by {@link #getScriptArgs}. */
+    private List<String> allArgs() {
+        List<String> args = new ArrayList<>(getArgs());
+        args.addAll(getScriptArgs().get());
+        return args;
+    }
+
+    @Input
+    public List<String> getRelativeArgs() {
+        return relativize(allArgs());
+    }
+
+    /** Returns args with the paths under the root project relative to it. */
+    protected List<String> relativize(List<String> args) {
+        Path root = mRootDir.toPath();
+        return args.stream()
+                .map(arg -> {
+                    File file = new File(arg);
+                    if (file.isAbsolute() && file.toPath().startsWith(root)) {
+                        return root.relativize(file.toPath()).toString();
+                    }
+                    return arg;
+                })
+                .collect(Collectors.toList());
+    }
+
+    public void inputFiles(Object... files) {
+        getInputFiles().from(files);
+    }
+
+    /** Files the script reads, e.g. the api.txt file passed in the arguments */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getInputFiles();
+
+    /**
+     * File the script writes its results to, optional. It is passed to --result-ndjson when it
+     * ends with .ndjson, to --result-json otherwise.
+     */
+    @OutputFile
+    @Optional
+    public abstract RegularFileProperty getResultFile();
+
+    /** Whether to run the script from a Gradle worker */
+    @Internal
+    public abstract Property<Boolean> getUseWorkers();
+
+    /** Whether to pass --profile to the script and log the metrics it records */
+    @Input
+    public abstract Property<Boolean> getProfile();
+
     public void setPythonCommand(String pythonCommand) {
         mPythonCommand = pythonCommand;
     }
@@ -60,24 +317,9 @@ public class PythonExec extends Exec {
         return mScriptPath;
     }
 
-    private File copyResourceToTemp(String resource) {
-        return copyResourceToTemp(resource, "script-", ".py");
-    }
-
-    private File copyResourceToTemp(String resource, String prefix, String suffix) {
-        File tempFile = null;
-
-        try {
-            InputStream script = getClass().getClassLoader().getResourceAsStream(resource);
-            tempFile = File.createTempFile(prefix, suffix);
-            Files.copy(script, Paths.get(tempFile.getAbsolutePath()), StandardCopyOption.REPLACE_EXISTING);
-
-            return tempFile;
-        } catch (IOException ex) {
-            if (tempFile != null) {
-                tempFile.delete();
-            }
-            throw new RuntimeException(ex);
-        }
+    /** Hash of the script, so that a new version of the plugin runs the tasks again */
+    @Input
+    public String getScriptSha1() {
+        return ScriptCache.hash(mScriptPath);
     }
 }
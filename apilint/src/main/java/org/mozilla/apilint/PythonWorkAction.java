@@ -0,0 +1,107 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs a script of {@link PythonExec} in a Python process started from a Gradle worker thread.
+ * The process is killed when the worker is interrupted, e.g. when the build is cancelled.
+ */
+public abstract class PythonWorkAction implements WorkAction<PythonWorkAction.Parameters> {
+    public interface Parameters extends WorkParameters {
+        ListProperty<String> getCommandLine();
+
+        Property<File> getWorkingDir();
+
+        Property<Boolean> getIgnoreExitValue();
+
+        /** Name of the script, for the error messages */
+        Property<String> getScriptPath();
+
+        /** Result file the profile summary is read from, only set with --profile */
+        Property<File> getProfileResultFile();
+    }
+
+    @Override
+    public void execute() {
+        Parameters parameters = getParameters();
+
+        int exitValue;
+        try {
+            exitValue = run(parameters);
+        } finally {
+            if (parameters.getProfileResultFile().isPresent()) {
+                PythonExec.logProfile(Logging.getLogger(PythonWorkAction.class),
+                        parameters.getScriptPath().get(),
+                        parameters.getProfileResultFile().get());
+            }
+        }
+
+        if (exitValue != 0 && !parameters.getIgnoreExitValue().get()) {
+            throw new GradleException(String.format(
+                    "Process '%s' finished with non-zero exit value %d",
+                    parameters.getScriptPath().get(), exitValue));
+        }
+    }
+
+    private static int run(Parameters parameters) {
+        ProcessBuilder builder = new ProcessBuilder(parameters.getCommandLine().get());
+        builder.directory(parameters.getWorkingDir().get());
+        builder.environment().put("PYTHONIOENCODING", "utf-8");
+
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException ex) {
+            throw new GradleException("Could not start " + parameters.getScriptPath().get(), ex);
+        }
+
+        // Read on their own threads, so that this one only waits for the process and can be
+        // interrupted. The output is printed from this thread, like the lint server does, so that
+        // Gradle attributes it to the task.
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        Thread stdoutReader = copy(process.getInputStream(), stdout);
+        Thread stderrReader = copy(process.getErrorStream(), stderr);
+        try {
+            int exitValue = process.waitFor();
+            stdoutReader.join();
+            stderrReader.join();
+            System.out.print(stdout.toString(StandardCharsets.UTF_8));
+            System.err.print(stderr.toString(StandardCharsets.UTF_8));
+            return exitValue;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GradleException(parameters.getScriptPath().get() + " was interrupted", ex);
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    private static Thread copy(InputStream from, ByteArrayOutputStream to) {
+        Thread thread = new Thread(() -> {
+            try {
+                from.transferTo(to);
+            } catch (IOException ex) {
+                // The process was killed
+            }
+        }, "apilint-output");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,96 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint;
+
+import groovy.json.JsonSlurper;
+import org.gradle.api.GradleException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The newline-delimited JSON result streams the scripts append to with {@code --result-ndjson}.
+ *
+ * <p>Every line is a record like {@code {"failures": {...}}}, with one entry of a list of the
+ * result JSON. A line can also be a whole result JSON, as written by {@code --result-json}, so
+ * that both kinds of files can be merged. This is the same as {@code apilint.py --merge-results}.
+ */
+final class ResultStream {
+    static final List<String> KEYS =
+            Arrays.asList("failures", "compat_failures", "api_changes", "api_removed");
+
+    private ResultStream() {}
+
+    /** Option of the scripts that writes to file, a stream when it ends with .ndjson */
+    static String option(File file) {
+        return file.getName().endsWith(".ndjson") ? "--result-ndjson" : "--result-json";
+    }
+
+    /** The result JSON of the records in files, in order. Missing files are skipped. */
+    static Map<String, Object> merge(Iterable<File> files) {
+        Map<String, List<Object>> lists = new LinkedHashMap<>();
+        for (String key : KEYS) {
+            lists.put(key, new ArrayList<>());
+        }
+        List<Object> metrics = new ArrayList<>();
+
+        JsonSlurper slurper = new JsonSlurper();
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try (BufferedReader reader =
+                         Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    Map<?, ?> record = (Map<?, ?>) slurper.parseText(line);
+                    for (Map.Entry<?, ?> entry : record.entrySet()) {
+                        List<Object> entries = "metrics".equals(entry.getKey())
+                                ? metrics : lists.get(entry.getKey());
+                        // "failure" is computed again from the merged lists
+                        if (entries == null) {
+                            continue;
+                        }
+                        if (entry.getValue() instanceof List) {
+                            entries.addAll((List<?>) entry.getValue());
+                        } else {
+                            entries.add(entry.getValue());
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                throw new GradleException("Could not read " + file, ex);
+            }
+        }
+
+        // Same order as apilint.py, the sort is stable
+        List<Object> failures = lists.get("failures");
+        failures.sort(Comparator.comparing(f -> (String) ((Map<?, ?>) f).get("rule"),
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+
+        Map<String, Object> result = new LinkedHashMap<>(lists);
+        result.put("failure", !lists.get("compat_failures").isEmpty()
+                || !lists.get("api_changes").isEmpty()
+                || !lists.get("api_removed").isEmpty()
+                || failures.stream().anyMatch(
+                        f -> Boolean.TRUE.equals(((Map<?, ?>) f).get("error"))));
+        if (!metrics.isEmpty()) {
+            result.put("metrics", metrics);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,137 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.apilint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Extracts the Python scripts embedded in the resources to a directory under the Gradle user
+ * home, named after the hash of the scripts, so that they are only extracted once per plugin
+ * version and Python can keep their bytecode in {@code __pycache__} next to them.
+ */
+final class ScriptCache {
+    static final List<String> SCRIPTS =
+            Arrays.asList("apilint.py", "changelog-check.py", "lint-server.py");
+
+    /**
+     * Runs a script of the cache as {@code __main__} like {@code python3 script.py} would, but
+     * through the import system, which is what reads and writes {@code __pycache__}.
+     */
+    private static final String RUN_SCRIPT =
+            "import runpy, sys; d, m = sys.argv[1:3]; del sys.argv[1:3]; "
+            + "sys.path.insert(0, d); runpy.run_module(m, run_name='__main__', alter_sys=True)";
+
+    /** SHA-1 of each script, read once per plugin class loader */
+    private static Map<String, String> sHashes;
+
+    private ScriptCache() {}
+
+    static synchronized Map<String, String> hashes() {
+        if (sHashes == null) {
+            Map<String, String> hashes = new LinkedHashMap<>();
+            for (String script : SCRIPTS) {
+                hashes.put(script, sha1(read(script)));
+            }
+            sHashes = Collections.unmodifiableMap(hashes);
+        }
+        return sHashes;
+    }
+
+    static String hash(String script) {
+        String hash = hashes().get(script);
+        if (hash == null) {
+            throw new IllegalArgumentException("Unknown script " + script);
+        }
+        return hash;
+    }
+
+    /** Returns the directory with all the scripts, extracting them if needed. */
+    static File directory(File gradleUserHome) {
+        String version =
+                sha1(String.join(",", hashes().values()).getBytes(StandardCharsets.UTF_8));
+        Path directory = gradleUserHome.toPath()
+                .resolve("caches").resolve("apilint").resolve("scripts").resolve(version);
+        if (Files.isDirectory(directory)) {
+            return directory.toFile();
+        }
+
+        try {
+            // Other builds may extract the same scripts concurrently, so the directory only
+            // appears once complete
+            Files.createDirectories(directory.getParent());
+            Path temp = Files.createTempDirectory(directory.getParent(), version + "-");
+            for (String script : SCRIPTS) {
+                Files.write(temp.resolve(script), read(script));
+            }
+            try {
+                Files.move(temp, directory, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                // Another build was faster
+                deleteRecursively(temp);
+                if (!Files.isDirectory(directory)) {
+                    throw ex;
+                }
+            }
+            return directory.toFile();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Command line that runs script from the cache with the given python command. */
+    static List<String> commandLine(String pythonCommand, File gradleUserHome, String script) {
+        List<String> command = new ArrayList<>();
+        command.add(pythonCommand);
+        command.add("-c");
+        command.add(RUN_SCRIPT);
+        command.add(directory(gradleUserHome).getAbsolutePath());
+        command.add(script.substring(0, script.length() - ".py".length()));
+        return command;
+    }
+
+    private static byte[] read(String script) {
+        try (InputStream stream = ScriptCache.class.getClassLoader().getResourceAsStream(script)) {
+            if (stream == null) {
+                throw new IllegalArgumentException("Missing script " + script);
+            }
+            return stream.readAllBytes();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static String sha1(byte[] content) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return String.format("%040x", new BigInteger(1, sha1.digest(content)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Collections.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -26,7 +26,13 @@ $ git blame api/current.txt -t -e > /tmp/currentblame.txt
 $ apilint.py /tmp/currentblame.txt previous.txt --no-color
 """
 
-import os, re, sys, collections, traceback, argparse, json
+import os, re, sys, bisect, collections, functools, itertools, traceback, argparse, json, hashlib, heapq, io, mmap, multiprocessing, pickle, struct, tempfile, time
+
+try:
+    import resource
+except ImportError:
+    # Not available on Windows, --profile won't report the peak RSS
+    resource = None
 
 
 BLACK, RED, GREEN, YELLOW, BLUE, MAGENTA, CYAN, WHITE = range(8)
@@ -38,6 +44,9 @@ DEPRECATED_ANNOTATION = "java.lang.Deprecated"
 DEPRECATION_SCHEDULE_ANNOTATION = None
 LIBRARY_VERSION = None
 
+# Profile of the current run when --profile is specified
+PROFILE = None
+
 PRIMITIVE_TYPES = ["boolean", "byte", "char", "short", "int", "long", "float",
                    "double"]
 
@@ -79,7 +88,7 @@ class Annotation():
             return (line, [])
 
         raw = line[:arg_begin]
-        arguments = collect_chunks(line[arg_begin+1:arg_end], ",")
+        arguments = collect_chunks(line, ",", arg_begin+1, arg_end)
         return (raw, arguments)
 
     def parse_value(self, value):
@@ -163,36 +172,59 @@ class Argument():
     def __repr__(self):
         return (" ".join("@" + repr(x) for x in self.annotations) + " " + repr(self.typ)).strip()
 
-def collect_chunks(line, separator, separator_len=1):
-    chunks = []
-    unparsed = line.strip()
-    while unparsed != "":
-        chunk, unparsed = find_next_chunk(unparsed, separator, separator_len)
-        unparsed = unparsed.strip()
-        chunks.append(chunk.strip())
-    return chunks
-
-# Finds the next chunk in line, considers everything between '<' and '>', '('
-# and ')' to be part of the same chunk, so e.g.  "TestClass<A extends B>" or
-# "function(int a)" is considered one chunk
-def find_next_chunk(unparsed, separator, separator_len=1):
+def collect_chunks(line, separator, start=0, end=None):
+    """Splits line[start:end] at separator, see chunk_spans."""
+    return [line[s:e] for s, e in chunk_spans(line, separator, start, end)]
+
+_chunk_patterns = {}
+
+# Splits line[start:end] at each match of the separator regex in a single pass,
+# everything between '<' and '>', '(' and ')' is considered to be part of the
+# same chunk, so e.g.  "TestClass<A extends B>" or "function(int a)" is
+# considered one chunk. Returns the (start, end) span of every chunk, without
+# surrounding whitespace.
+def chunk_spans(line, separator, start=0, end=None):
+    pattern = _chunk_patterns.get(separator)
+    if pattern is None:
+        pattern = re.compile(r"[<>()]|" + separator)
+        _chunk_patterns[separator] = pattern
+
+    # Same bounds as line[start:end]
+    start, end, _ = slice(start, end).indices(len(line))
+    start = _skip_space(line, start, end)
+    while end > start and line[end-1].isspace():
+        end -= 1
+
+    spans = []
     caret = 0
     parens = 0
-    for i in range(1, len(unparsed) + 1):
-        if unparsed[i-1] == '<':
+    for match in pattern.finditer(line, start, end):
+        c = match.group()
+        if c == '<':
             caret += 1
-        elif unparsed[i-1] == '>':
+        elif c == '>':
             caret -= 1
-        elif unparsed[i-1] == '(':
+        elif c == '(':
             parens += 1
-        elif unparsed[i-1] == ')':
+        elif c == ')':
             parens -= 1
-        elif (i >= separator_len and
-                re.match(separator, unparsed[i-separator_len:i]) and
-                caret == 0 and parens == 0):
-            return (unparsed[0:i-separator_len], unparsed[i:].strip())
-    # only one chunk
-    return (unparsed, "")
+        elif match.start() >= start and caret == 0 and parens == 0:
+            chunk_end = match.start()
+            while chunk_end > start and line[chunk_end-1].isspace():
+                chunk_end -= 1
+            spans.append((start, chunk_end))
+            start = _skip_space(line, match.end(), end)
+            if start == end:
+                return spans
+
+    if start < end:
+        spans.append((start, end))
+    return spans
+
+def _skip_space(line, start, end):
+    while start < end and line[start].isspace():
+        start += 1
+    return start
 
 class Method():
     def arguments(self, raw):
@@ -200,7 +232,7 @@ class Method():
         arg_begin = line.find('(')
         arg_end = line.find(')')
 
-        arguments = collect_chunks(line[arg_begin+1:arg_end], ",")
+        arguments = collect_chunks(line, ",", arg_begin+1, arg_end)
         return arguments
 
     def __init__(self, clazz, location, raw, blame, imports):
@@ -261,7 +293,7 @@ class Type():
         self.source = source
         self.raw = raw
 
-        raw = collect_chunks(raw, "extends", len("extends"))
+        raw = collect_chunks(raw, "extends")
         if len(raw) > 1:
             extends = collect_chunks(raw[1], "&")
             self.extends = [Type(clazz, self, e, location, blame, imports) for e in extends]
@@ -270,9 +302,8 @@ class Type():
 
         raw = raw[0]
         if "<" in raw:
-            generics_string = raw[raw.find("<")+1:raw.rfind(">")]
             self.generics = [Type(clazz, self, x, location, blame, imports)
-                for x in collect_chunks(generics_string, ",")]
+                for x in collect_chunks(raw, ",", raw.find("<")+1, raw.rfind(">"))]
             raw = raw[:raw.find("<")]
         else:
             self.generics = []
@@ -334,16 +365,8 @@ class Class():
 
         raw = collect_chunks(self.raw, r"\s")
         self.split = list(raw)
-        self.isEnum = False
-        if "class" in raw:
-            self.fullname = raw[raw.index("class")+1]
-        elif "interface" in raw:
-            self.fullname = raw[raw.index("interface")+1]
-        elif "enum" in raw:
-            self.fullname = raw[raw.index("enum")+1]
-            self.isEnum = True
-        else:
-            raise ValueError("Funky class type %s" % (self.raw))
+        self.fullname = Class.declared_name(raw)
+        self.isEnum = "class" not in raw and "interface" not in raw
 
         if "extends" in raw:
             self.extends = Type(self, None, raw[raw.index("extends")+1], location,
@@ -364,7 +387,7 @@ class Class():
         if "<" in self.fullname:
             self.generics = Type(self, None, self.fullname, location, blame,
                                  imports).generics
-            self.fullname = re.sub("<.+?>", "", self.fullname)
+            self.fullname = self.fullname[:self.fullname.index("<")]
         else:
             self.generics = []
 
@@ -373,6 +396,24 @@ class Class():
 
         self.name = self.fullname[self.fullname.rindex(".")+1:]
 
+    @staticmethod
+    def declared_name(split):
+        """Name of the class with its generics, split is the chunked class line."""
+        for kind in ["class", "interface", "enum"]:
+            if kind in split:
+                return split[split.index(kind)+1]
+        raise ValueError("Funky class type %s" % (" ".join(split)))
+
+    @staticmethod
+    def parse_fullname(pkg, raw, split=None):
+        """Same as the fullname of Class(pkg, ..., raw, ...) without parsing the types."""
+        if split is None:
+            split = collect_chunks(raw.strip(" {;"), r"\s")
+        name = Class.declared_name(split)
+        if "<" in name:
+            name = name[:name.index("<")]
+        return pkg.name + "." + name
+
     def __hash__(self):
         return hash((self.raw, tuple(self.ctors), tuple(self.fields), tuple(self.methods)))
 
@@ -395,15 +436,19 @@ class Package():
         return self.raw
 
 
-def _parse_stream(f, api_map, clazz_cb=None):
-    line = 0
+RE_BLAME = re.compile(r"^([a-z0-9]{7,}) \(<([^>]+)>.+?\) (.+?)$")
+
+def _parse_stream(f, api_map, clazz_cb=None, line=0, pkg=None, imports=None):
+    """Parses the lines of f, line is the number of the line before the first
+    one. pkg and imports are the ones in effect at that line, when f does not
+    start at the beginning of the file."""
     api = {}
-    pkg = None
     clazz = None
     blame = None
-    imports = {}
+    if imports is None:
+        imports = {}
 
-    re_blame = re.compile(r"^([a-z0-9]{7,}) \(<([^>]+)>.+?\) (.+?)$")
+    re_blame = RE_BLAME
     for raw in f:
         line += 1
         raw = raw.rstrip()
@@ -420,7 +465,7 @@ def _parse_stream(f, api_map, clazz_cb=None):
             imports[imp.split(".")[-1]] = imp
         elif raw.startswith("package"):
             pkg = Package(location, raw, blame)
-        elif raw.startswith("  ") and raw.endswith("{"):
+        elif _is_class_line(raw):
             # When provided with class callback, we treat as incremental
             # parse and don't build up entire API
             if clazz and clazz_cb:
@@ -443,6 +488,151 @@ def _parse_stream(f, api_map, clazz_cb=None):
     return api
 
 
+def _is_class_line(raw):
+    return raw.startswith("  ") and raw.endswith("{")
+
+RE_IDENTIFIER = re.compile(r"[A-Za-z_$][\w$]*")
+
+# Digests of a class block in an API file:
+# text is equal when the parsed classes have the same hash, model when they
+# also resolve to the same types, and result when their failures are identical.
+# extends is the simple name of the superclass, if any.
+ClassFingerprint = collections.namedtuple('ClassFingerprint', ['text', 'model', 'result', 'extends'])
+
+class IndexedApi():
+    """An API file that is parsed one class at a time, when the class is
+    looked up. A first pass records where each class starts, only the classes
+    looked up last are kept, so that memory does not grow with the size of the
+    file. Classes are looked up by name like in the dict of _parse_stream."""
+    CACHE_SIZE = 64
+
+    def __init__(self, path, api_map, fingerprints=False):
+        self.api_map = api_map
+        self.file = open(path, 'rb')
+        self.imports = {}
+        # Class name to offset, line and package of the class, in file order
+        self.offsets = collections.OrderedDict()
+        # Class name to ClassFingerprint, only computed when asked for
+        self.fingerprints = {} if fingerprints else None
+        self.cache = collections.OrderedDict()
+        self._index()
+
+    def _text(self, raw):
+        text = raw.decode('UTF-8').rstrip()
+        match = RE_BLAME.match(text)
+        return match.groups()[2] if match is not None else text
+
+    def _index(self):
+        offset = 0
+        line = 0
+        pkg = None
+        # Name, package and lines of the class being read, for its fingerprint
+        block = None
+        for raw in self.file:
+            line += 1
+            text = self._text(raw)
+            if block is not None and not text.startswith("    "):
+                self._fingerprint(*block)
+                block = None
+            if text.startswith("import"):
+                imp = text[text.index("import")+7:-1]
+                self.imports[imp.split(".")[-1]] = imp
+            elif text.startswith("package"):
+                pkg = Package(read_map(self.api_map, line), text, None)
+            elif _is_class_line(text):
+                split = collect_chunks(text.strip(" {;"), r"\s")
+                name = Class.parse_fullname(pkg, text, split)
+                self.offsets[name] = (offset, line, pkg)
+                if self.fingerprints is not None:
+                    block = (name, pkg, split, [])
+            if block is not None:
+                block[3].append((line, raw, text))
+            offset += len(raw)
+        if block is not None:
+            self._fingerprint(*block)
+
+    def _fingerprint(self, name, pkg, split, lines):
+        # Same grouping as the members of Class, so that text is equal when the
+        # hashes of the parsed classes are
+        groups = ([], [], [], [])
+        for _, _, t in lines:
+            if t.startswith("    ctor"):
+                groups[1].append(t)
+            elif t.startswith("    method"):
+                groups[2].append(t)
+            elif t.startswith("    field") or t.startswith("    enum_constant"):
+                groups[3].append(t)
+            elif not t.startswith("    "):
+                groups[0].append(t)
+        text = hashlib.sha1()
+        for group in groups:
+            for t in group:
+                text.update(t.strip(" {;").encode('UTF-8'))
+                text.update(b"\n")
+
+        # Types are resolved with the imports, which are not part of the class
+        model = hashlib.sha1(text.digest())
+        idents = set()
+        for _, _, t in lines:
+            idents.update(RE_IDENTIFIER.findall(t))
+        for ident in sorted(idents):
+            if ident in self.imports:
+                model.update(("%s=%s\n" % (ident, self.imports[ident])).encode('UTF-8'))
+
+        # Failures also show the package, the blame and the source locations
+        result = hashlib.sha1(model.digest())
+        result.update(pkg.raw.encode('UTF-8'))
+        for line, raw, _ in lines:
+            location = read_map(self.api_map, line)
+            result.update(raw)
+            result.update(("%s:%s:%s\n" % (location.fileName, location.line, location.column))
+                          .encode('UTF-8'))
+
+        extends = None
+        if "extends" in split:
+            extends = split[split.index("extends")+1]
+            if "<" in extends:
+                extends = extends[:extends.index("<")]
+            extends = extends.split(".")[-1]
+
+        self.fingerprints[name] = ClassFingerprint(
+            text.hexdigest(), model.hexdigest(), result.hexdigest(), extends)
+
+    def location(self, name):
+        return read_map(self.api_map, self.offsets[name][1])
+
+    def _parse(self, name):
+        offset, line, pkg = self.offsets[name]
+        self.file.seek(offset)
+        lines = [self.file.readline().decode('UTF-8')]
+        for raw in self.file:
+            if not self._text(raw).startswith("    "):
+                break
+            lines.append(raw.decode('UTF-8'))
+        return _parse_stream(lines, self.api_map, line=line - 1, pkg=pkg,
+                             imports=self.imports)[name]
+
+    def __contains__(self, name):
+        return name in self.offsets
+
+    def __getitem__(self, name):
+        clazz = self.cache.get(name)
+        if clazz is None:
+            clazz = self._parse(name)
+            self.cache[name] = clazz
+            if len(self.cache) > IndexedApi.CACHE_SIZE:
+                self.cache.popitem(last=False)
+        else:
+            self.cache.move_to_end(name)
+        return clazz
+
+    def keys(self):
+        return self.offsets.keys()
+
+    def close(self):
+        self.file.close()
+
+
 class Failure():
     def __init__(self, sig, clazz, detail, error, rule, msg):
         self.sig = sig
@@ -491,7 +681,54 @@ class Failure():
             'pkg': repr(self.clazz.pkg),
         }
 
+class BinaryApiMap():
+    """Source map written by ApiDoclet as api.txt.map.bin, see BinarySourceMap
+    in ApiDoclet.java. It is memory mapped and indexed by line number."""
+    MAGIC = 0x41504d42
+    VERSION = 2
+
+    def __init__(self, data):
+        self.data = data
+        magic, version, file_count = struct.unpack_from(">iii", data, 0)
+        if version != BinaryApiMap.VERSION:
+            raise ValueError("Unsupported api map version %d" % version)
+
+        offset = 12
+        self.files = []
+        for i in range(file_count):
+            (length,) = struct.unpack_from(">i", data, offset)
+            self.files.append(data[offset+4:offset+4+length].decode('UTF-8'))
+            offset += 4 + length
+
+        (self.lines,) = struct.unpack_from(">i", data, offset)
+        self.offset = offset + 4
+
+    def __len__(self):
+        return self.lines
+
+    def digest(self):
+        return hashlib.sha1(self.data).hexdigest()
+
+    def location(self, lineNumber):
+        if lineNumber - 1 >= self.lines:
+            return Location("api.txt", lineNumber, 0)
+        file, line, column = struct.unpack_from(">iii", self.data, self.offset + 12 * (lineNumber - 1))
+        if file == -1:
+            return Location("api.txt", lineNumber, 0)
+        return Location(self.files[file], line, column)
+
+def load_api_map(path):
+    """Reads the api map at path, either the binary or the text format."""
+    with open(path, 'rb') as f:
+        magic = f.read(4)
+        if len(magic) == 4 and struct.unpack(">i", magic)[0] == BinaryApiMap.MAGIC:
+            return BinaryApiMap(mmap.mmap(f.fileno(), 0, access=mmap.ACCESS_READ))
+    with open(path, encoding='UTF-8') as f:
+        return f.readlines()
+
 def read_map(api_map, lineNumber):
+    if isinstance(api_map, BinaryApiMap):
+        return api_map.location(lineNumber)
     if api_map is None or (lineNumber - 1) >= len(api_map):
         return Location("api.txt", lineNumber, 0)
     mapString = api_map[lineNumber-1].strip()
@@ -527,6 +764,102 @@ def notice(clazz):
     noticed[clazz.fullname] = clazz
 
 
+def supertypes(clazz):
+    """Resolved names of the types clazz extends or implements."""
+    result = set(t.name for t in clazz.implements)
+    if clazz.extends:
+        result.add(clazz.extends.name)
+    return result
+
+
+class ClassFacts():
+    """What the rules need to know about a class to decide whether they can
+    find anything in it, computed once per class."""
+    def __init__(self, clazz):
+        self.package = clazz.pkg.name
+        self.name = clazz.name
+        self.supertypes = supertypes(clazz)
+
+        # Same precedence as Class.__init__
+        for kind in ["class", "interface", "enum"]:
+            if kind in clazz.split:
+                break
+        self.kind = kind
+        self.modifiers = set(x for x in clazz.split[:clazz.split.index(kind)]
+                             if not x.startswith("@"))
+
+        self.members = set()
+        if clazz.ctors: self.members.add("ctors")
+        if clazz.methods: self.members.add("methods")
+        if clazz.fields: self.members.add("fields")
+
+        # Sorted, so that prefixes can be looked up with a binary search.
+        # Method.name ends with the argument list, which is not a fact.
+        self.member_names = sorted(set(m.name.split("(")[0] for m in clazz.methods) |
+                                   set(f.name for f in clazz.fields))
+
+        self.annotation_types = set(a.typ.name for a in clazz.annotations)
+        for m in clazz.ctors + clazz.methods + clazz.fields:
+            self.annotation_types.update(a.typ.name for a in m.annotations)
+
+    def has_member_prefix(self, prefix):
+        i = bisect.bisect_left(self.member_names, prefix)
+        return i < len(self.member_names) and self.member_names[i].startswith(prefix)
+
+    def has_member(self, name):
+        i = bisect.bisect_left(self.member_names, name)
+        return i < len(self.member_names) and self.member_names[i] == name
+
+
+def requires(*preconditions):
+    """Declares the facts a rule depends on. Each precondition is called with
+    the ClassFacts of a class, the rule is skipped unless all of them return
+    True, so they must hold for every class the rule can report on."""
+    def register(rule):
+        rule.preconditions = preconditions
+        return rule
+    return register
+
+# The helpers below return the same precondition for the same arguments, so
+# that applicable_rules only evaluates it once per class.
+@functools.lru_cache(maxsize=None)
+def has(*members):
+    return lambda facts: not facts.members.isdisjoint(members)
+
+@functools.lru_cache(maxsize=None)
+def extends(*names):
+    return lambda facts: not facts.supertypes.isdisjoint(names)
+
+@functools.lru_cache(maxsize=None)
+def named(*suffixes):
+    return lambda facts: facts.name.endswith(suffixes)
+
+@functools.lru_cache(maxsize=None)
+def declared_as(kind):
+    return lambda facts: facts.kind == kind
+
+@functools.lru_cache(maxsize=None)
+def in_package(*prefixes):
+    return lambda facts: facts.package.startswith(prefixes)
+
+@functools.lru_cache(maxsize=None)
+def has_modifier(modifier):
+    return lambda facts: modifier in facts.modifiers
+
+@functools.lru_cache(maxsize=None)
+def has_member_prefix(*prefixes):
+    return lambda facts: any(facts.has_member_prefix(p) for p in prefixes)
+
+@functools.lru_cache(maxsize=None)
+def has_member(*names):
+    return lambda facts: any(facts.has_member(n) for n in names)
+
+@functools.lru_cache(maxsize=None)
+def annotated(*names):
+    return lambda facts: not facts.annotation_types.isdisjoint(names)
+
+
+@requires(has("fields"))
 def verify_constants(clazz):
     """All static final constants must be FOO_NAME style."""
     if re.match(r"android\.R\.[a-z]+", clazz.fullname): return
@@ -545,9 +878,10 @@ def verify_constants(clazz):
                 error(clazz, f, None, "All constants must be defined at compile time")
 
 
+@requires(extends("java.lang.Enum"))
 def verify_enums(clazz):
     """Enums are bad, mmkay?"""
-    if "extends java.lang.Enum" in clazz.raw:
+    if "java.lang.Enum" in supertypes(clazz):
         error(clazz, None, "F5", "Enums are not allowed")
 
 
@@ -565,6 +899,7 @@ def verify_class_names(clazz):
         error(clazz, None, None, "Don't expose your implementation details")
 
 
+@requires(has("methods"))
 def verify_method_names(clazz):
     """Try catching malformed method names, like Foo() or getMTU()."""
     if clazz.fullname.startswith("android.opengl"): return
@@ -578,6 +913,7 @@ def verify_method_names(clazz):
             error(clazz, m, "S1", "Method name must start with lowercase char")
 
 
+@requires(named("Callbacks", "Observer", "Callback"))
 def verify_callbacks(clazz):
     """Verify Callback classes.
     All callback classes must be abstract.
@@ -598,6 +934,7 @@ def verify_callbacks(clazz):
                 error(clazz, m, "L1", "Callback method names must be onFoo() style")
 
 
+@requires(named("Listener"))
 def verify_listeners(clazz):
     """Verify Listener classes.
     All Listener classes must be interface.
@@ -619,6 +956,7 @@ def verify_listeners(clazz):
                 error(clazz, m, "L1", "Single listener method name must match class name")
 
 
+@requires(has("fields"))
 def verify_actions(clazz):
     """Verify intent actions.
     All action names must be named ACTION_FOO.
@@ -650,6 +988,7 @@ def verify_actions(clazz):
                         error(clazz, f, "C4", "Inconsistent action value; expected '%s'" % (expected))
 
 
+@requires(has("fields"))
 def verify_extras(clazz):
     """Verify intent extras.
     All extra names must be named EXTRA_FOO.
@@ -680,6 +1019,7 @@ def verify_extras(clazz):
                         error(clazz, f, "C4", "Inconsistent extra value; expected '%s'" % (expected))
 
 
+@requires(has_member("equals", "hashCode"))
 def verify_equals(clazz):
     """Verify that equals() and hashCode() must be overridden together."""
     eq = False
@@ -692,9 +1032,10 @@ def verify_equals(clazz):
         error(clazz, None, "M8", "Must override both equals and hashCode; missing one")
 
 
+@requires(extends("android.os.Parcelable"))
 def verify_parcelable(clazz):
     """Verify that Parcelable objects aren't hiding required bits."""
-    if "implements android.os.Parcelable" in clazz.raw:
+    if "android.os.Parcelable" in supertypes(clazz):
         creator = [ i for i in clazz.fields if i.name == "CREATOR" ]
         write = [ i for i in clazz.methods if i.name == "writeToParcel" ]
         describe = [ i for i in clazz.methods if i.name == "describeContents" ]
@@ -711,6 +1052,7 @@ def verify_parcelable(clazz):
                 error(clazz, c, "FW3", "Parcelable inflation is exposed through CREATOR, not raw constructors")
 
 
+@requires(has("methods", "fields"))
 def verify_protected(clazz):
     """Verify that no protected methods or fields are allowed."""
     for m in clazz.methods:
@@ -720,6 +1062,7 @@ def verify_protected(clazz):
         if "protected" in f.split:
             error(clazz, f, "M7", "Protected fields not allowed; must be public")
 
+@requires(has("fields"))
 def verify_final_fields_only_class(clazz):
     if clazz.methods or not clazz.fields:
         # Not a final field-only class
@@ -736,6 +1079,7 @@ def verify_final_fields_only_class(clazz):
     if "final" in clazz.split:
         error(clazz, None, "GV2", "Field-only classes should not be final for mocking.")
 
+@requires(has("methods"))
 def verify_threading_annotations(clazz):
     THREADING_ANNOTATIONS = [
         "android.support.annotation.MainThread",
@@ -766,6 +1110,7 @@ def verify_threading_annotations(clazz):
                 "one of: @MainThread, @UiThread, @WorkerThread, @BinderThread, "
                 "@AnyThread.")
 
+@requires(has("methods", "fields"))
 def verify_nullability_annotations(clazz):
     NULLABILITY_ANNOTATIONS = [
         "android.support.annotation.NonNull",
@@ -806,6 +1151,7 @@ def verify_nullability_annotations(clazz):
                 "annotation. Needs one of @Nullable, @NonNull.")
 
 
+@requires(declared_as("interface"), has("methods"))
 def verify_default_impl(clazz):
     if "interface" not in clazz.split:
         return
@@ -820,6 +1166,7 @@ def verify_default_impl(clazz):
             error(clazz, f, "GV6", "All interface methods should have a default "
                 "implementation for backwards compatibility")
 
+@requires(has("fields"))
 def verify_fields(clazz):
     """Verify that all exposed fields are final.
     Exposed fields must follow myName style.
@@ -834,6 +1181,7 @@ def verify_fields(clazz):
                 error(clazz, f, "C2", "Constants must be marked static final")
 
 
+@requires(has_member_prefix("register", "unregister", "add", "remove"))
 def verify_register(clazz):
     """Verify parity of registration methods.
     Callback objects use register/unregister methods.
@@ -867,6 +1215,7 @@ def verify_register(clazz):
                 error(clazz, m, "L3", "Listener methods should be named add/remove")
 
 
+@requires(has("methods"))
 def verify_sync(clazz):
     """Verify synchronized methods aren't exposed."""
     for m in clazz.methods:
@@ -874,6 +1223,7 @@ def verify_sync(clazz):
             error(clazz, m, "M5", "Internal locks must not be exposed")
 
 
+@requires(has("methods"))
 def verify_intent_builder(clazz):
     """Verify that Intent builders are createFooIntent() style."""
     if clazz.name == "Intent": return
@@ -886,11 +1236,14 @@ def verify_intent_builder(clazz):
                 warn(clazz, m, "FW1", "Methods creating an Intent should be named createFooIntent()")
 
 
+@requires(extends("android.app.Service", "android.content.ContentProvider",
+                  "android.content.BroadcastReceiver", "android.app.Activity"))
 def verify_helper_classes(clazz):
     """Verify that helper classes are named consistently with what they extend.
     All developer extendable methods should be named onFoo()."""
+    extended = supertypes(clazz)
     test_methods = False
-    if "extends android.app.Service" in clazz.raw:
+    if "android.app.Service" in extended:
         test_methods = True
         if not clazz.name.endswith("Service"):
             error(clazz, None, "CL4", "Inconsistent class name; should be FooService")
@@ -902,7 +1255,7 @@ def verify_helper_classes(clazz):
                 if f.value != clazz.fullname:
                     error(clazz, f, "C4", "Inconsistent interface constant; expected '%s'" % (clazz.fullname))
 
-    if "extends android.content.ContentProvider" in clazz.raw:
+    if "android.content.ContentProvider" in extended:
         test_methods = True
         if not clazz.name.endswith("Provider"):
             error(clazz, None, "CL4", "Inconsistent class name; should be FooProvider")
@@ -914,12 +1267,12 @@ def verify_helper_classes(clazz):
                 if f.value != clazz.fullname:
                     error(clazz, f, "C4", "Inconsistent interface constant; expected '%s'" % (clazz.fullname))
 
-    if "extends android.content.BroadcastReceiver" in clazz.raw:
+    if "android.content.BroadcastReceiver" in extended:
         test_methods = True
         if not clazz.name.endswith("Receiver"):
             error(clazz, None, "CL4", "Inconsistent class name; should be FooReceiver")
 
-    if "extends android.app.Activity" in clazz.raw:
+    if "android.app.Activity" in extended:
         test_methods = True
         if not clazz.name.endswith("Activity"):
             error(clazz, None, "CL4", "Inconsistent class name; should be FooActivity")
@@ -934,6 +1287,7 @@ def verify_helper_classes(clazz):
                     warn(clazz, m, None, "If implemented by developer, should be named onFoo(); otherwise consider marking final")
 
 
+@requires(named("Builder"))
 def verify_builder(clazz):
     """Verify builder classes.
     Methods should return the builder to enable chaining."""
@@ -963,18 +1317,22 @@ def verify_builder(clazz):
         warn(clazz, None, None, "Missing build() method")
 
 
+@requires(extends("android.os.Binder", "android.os.IInterface"))
 def verify_aidl(clazz):
     """Catch people exposing raw AIDL."""
-    if "extends android.os.Binder" in clazz.raw or "implements android.os.IInterface" in clazz.raw:
+    extended = supertypes(clazz)
+    if "android.os.Binder" in extended or "android.os.IInterface" in extended:
         error(clazz, None, None, "Raw AIDL interfaces must not be exposed")
 
 
+@requires(in_package("com.android"))
 def verify_internal(clazz):
     """Catch people exposing internal classes."""
     if clazz.pkg.name.startswith("com.android"):
         error(clazz, None, None, "Internal classes must not be exposed")
 
 
+@requires(in_package("android."))
 def verify_layering(clazz):
     """Catch package layering violations.
     For example, something in android.os depending on android.app."""
@@ -1005,20 +1363,21 @@ def verify_layering(clazz):
     if cr is None: return
 
     for f in clazz.fields:
-        ir = rank(f.typ)
+        ir = rank(f.typ.name)
         if ir and ir < cr:
             warn(clazz, f, "FW6", "Field type violates package layering")
 
     for m in clazz.methods:
-        ir = rank(m.typ)
+        ir = rank(m.typ.name)
         if ir and ir < cr:
             warn(clazz, m, "FW6", "Method return type violates package layering")
         for arg in m.args:
-            ir = rank(arg.typ)
+            ir = rank(arg.typ.name)
             if ir and ir < cr:
                 warn(clazz, m, "FW6", "Method argument type violates package layering")
 
 
+@requires(has("methods"))
 def verify_boolean(clazz):
     """Verifies that boolean accessors are named correctly.
     For example, hasFoo() and setHasFoo()."""
@@ -1059,6 +1418,7 @@ def verify_boolean(clazz):
                 error_if_exists(sets, m.name, expected, "has" + target)
 
 
+@requires(has("methods"))
 def verify_collections(clazz):
     """Verifies that collection types are interfaces."""
     if clazz.fullname == "android.os.Bundle": return
@@ -1073,6 +1433,7 @@ def verify_collections(clazz):
                 error(clazz, m, "CL2", "Argument is concrete collection; must be higher-level interface")
 
 
+@requires(has("fields"))
 def verify_flags(clazz):
     """Verifies that flags are non-overlapping."""
     known = collections.defaultdict(int)
@@ -1089,6 +1450,7 @@ def verify_flags(clazz):
             known[scope] |= val
 
 
+@requires(has("methods"))
 def verify_exception(clazz):
     """Verifies that methods don't throw generic exceptions."""
     for m in clazz.methods:
@@ -1107,6 +1469,7 @@ def verify_exception(clazz):
                 warn(clazz, m, "S1", "Methods taking no arguments should throw IllegalStateException")
 
 
+@requires(lambda facts: not ALLOW_GOOGLE)
 def verify_google(clazz):
     """Verifies that APIs never reference Google."""
 
@@ -1123,6 +1486,7 @@ def verify_google(clazz):
             error(clazz, t, None, "Must never reference Google")
 
 
+@requires(has("methods", "fields"))
 def verify_bitset(clazz):
     """Verifies that we avoid using heavy BitSet."""
 
@@ -1138,6 +1502,7 @@ def verify_bitset(clazz):
                 error(clazz, m, None, "Argument type must not be heavy BitSet")
 
 
+@requires(named("Manager"))
 def verify_manager(clazz):
     """Verifies that FooManager is only obtained from Context."""
 
@@ -1151,6 +1516,7 @@ def verify_manager(clazz):
             error(clazz, m, None, "Managers must always be obtained from Context")
 
 
+@requires(has("ctors", "methods", "fields"))
 def verify_boxed(clazz):
     """Verifies that methods avoid boxed primitives."""
 
@@ -1173,6 +1539,7 @@ def verify_boxed(clazz):
                 error(clazz, m, "M11", "Must avoid boxed primitives")
 
 
+@requires(has("ctors"))
 def verify_static_utils(clazz):
     """Verifies that helper classes can't be constructed."""
     if clazz.fullname.startswith("android.opengl"): return
@@ -1192,6 +1559,7 @@ def verify_static_utils(clazz):
         error(clazz, None, None, "Fully-static utility classes must not have constructor")
 
 
+@requires(has("methods"))
 def verify_overload_args(clazz):
     """Verifies that method overloads add new arguments at the end."""
     if clazz.fullname.startswith("android.opengl"): return
@@ -1232,6 +1600,7 @@ def verify_overload_args(clazz):
                 error(clazz, m, "M2", "Expected consistent argument ordering between overloads: %s..." % (", ".join(locked_sig)))
 
 
+@requires(has("ctors", "methods"))
 def verify_callback_handlers(clazz):
     """Verifies that methods adding listener/callback have overload
     for specifying delivery thread."""
@@ -1285,6 +1654,7 @@ def verify_callback_handlers(clazz):
             warn(clazz, f, "L1", "Registration methods should have overload that accepts delivery Executor")
 
 
+@requires(has("ctors", "methods"))
 def verify_context_first(clazz):
     """Verifies that methods accepting a Context keep it the first argument."""
     examine = clazz.ctors + clazz.methods
@@ -1299,6 +1669,7 @@ def verify_context_first(clazz):
                     error(clazz, m, "M3", "ContentResolver is distinct, so it must be the first argument")
 
 
+@requires(has("ctors", "methods"))
 def verify_listener_last(clazz):
     """Verifies that methods accepting a Listener or Callback keep them as last arguments."""
     examine = clazz.ctors + clazz.methods
@@ -1312,6 +1683,7 @@ def verify_listener_last(clazz):
                 warn(clazz, m, "M3", "Listeners should always be at end of argument list")
 
 
+@requires(in_package("android"))
 def verify_resource_names(clazz):
     """Verifies that resource names have consistent case."""
     if not re.match(r"android\.R\.[a-z]+", clazz.fullname): return
@@ -1339,6 +1711,7 @@ def verify_resource_names(clazz):
             error(clazz, f, "C7", "Expected resource name in this class to be FooBar_Baz style")
 
 
+@requires(has("ctors", "methods"))
 def verify_files(clazz):
     """Verifies that methods accepting File also accept streams."""
 
@@ -1361,6 +1734,7 @@ def verify_files(clazz):
             warn(clazz, m, "M10", "Methods accepting File should also accept FileDescriptor or streams")
 
 
+@requires(named("Manager"))
 def verify_manager_list(clazz):
     """Verifies that managers return List<? extends Parcelable> instead of arrays."""
 
@@ -1371,14 +1745,16 @@ def verify_manager_list(clazz):
             warn(clazz, m, None, "Methods should return List<? extends Parcelable> instead of Parcelable[] to support ParceledListSlice under the hood")
 
 
+@requires(has_modifier("abstract"))
 def verify_abstract_inner(clazz):
     """Verifies that abstract inner classes are static."""
 
     if re.match(r".+?\.[A-Z][^\.]+\.[A-Z]", clazz.fullname):
-        if " abstract " in clazz.raw and " static " not in clazz.raw:
+        if "abstract" in clazz.split and "static" not in clazz.split:
             warn(clazz, None, None, "Abstract inner classes should be static to improve testability")
 
 
+@requires(has("ctors", "methods"))
 def verify_runtime_exceptions(clazz):
     """Verifies that runtime exceptions aren't listed in throws."""
 
@@ -1432,6 +1808,7 @@ def verify_error(clazz):
         error(clazz, None, None, "Exceptions must be named FooException")
 
 
+@requires(has("methods"))
 def verify_units(clazz):
     """Verifies that we use consistent naming for units."""
 
@@ -1468,18 +1845,23 @@ def verify_units(clazz):
             error(clazz, m, None, "Percentage must use ints")
 
 
+RELEASE_METHODS = ["close","release","destroy","finish","finalize","disconnect","shutdown","stop","free","quit"]
+
+@requires(has_member(*RELEASE_METHODS))
 def verify_closable(clazz):
     """Verifies that classes are AutoClosable."""
-    if "implements java.lang.AutoCloseable" in clazz.raw: return
-    if "implements java.io.Closeable" in clazz.raw: return
+    extended = supertypes(clazz)
+    if "java.lang.AutoCloseable" in extended: return
+    if "java.io.Closeable" in extended: return
 
     for m in clazz.methods:
         if len(m.args) > 0: continue
-        if m.name in ["close","release","destroy","finish","finalize","disconnect","shutdown","stop","free","quit"]:
+        if m.name in RELEASE_METHODS:
             warn(clazz, m, None, "Classes that release resources should implement AutoClosable and CloseGuard")
             return
 
 
+@requires(has("methods", "fields"))
 def verify_member_name_not_kotlin_keyword(clazz):
     """Prevent method names which are keywords in Kotlin."""
 
@@ -1505,6 +1887,7 @@ def verify_member_name_not_kotlin_keyword(clazz):
             error(clazz, f, None, "Field name must not be a Kotlin keyword")
 
 
+@requires(has("methods"))
 def verify_method_name_not_kotlin_operator(clazz):
     """Warn about method names which become operators in Kotlin."""
 
@@ -1554,6 +1937,7 @@ def verify_method_name_not_kotlin_operator(clazz):
             unique_binary_op(m, m.name[:-6])  # Remove 'Assign' suffix
 
 
+@requires(has("methods"))
 def verify_collections_over_arrays(clazz):
     """Warn that [] should be Collections."""
 
@@ -1566,6 +1950,7 @@ def verify_collections_over_arrays(clazz):
                 warn(clazz, m, None, "Method argument should be Collection<> (or subclass) instead of raw array")
 
 
+@requires(has("methods"))
 def verify_user_handle(clazz):
     """Methods taking UserHandle should be ForUser or AsUser."""
     if clazz.name.endswith("Listener") or clazz.name.endswith("Callback") or clazz.name.endswith("Callbacks"): return
@@ -1610,6 +1995,7 @@ def verify_services(clazz):
                 error(clazz, f, "C4", "Inconsistent service value; expected '%s'" % (expected))
 
 
+@requires(has("methods"))
 def verify_tense(clazz):
     """Verify tenses of method names."""
     if clazz.fullname.startswith("android.opengl"): return
@@ -1619,6 +2005,7 @@ def verify_tense(clazz):
             warn(clazz, m, None, "Unexpected tense; probably meant 'enabled'")
 
 
+@requires(has("ctors", "methods"))
 def verify_icu(clazz):
     """Verifies that richer ICU replacements are used."""
     better = {
@@ -1651,22 +2038,24 @@ def verify_icu(clazz):
                 warn(clazz, m, None, "Type %s should be replaced with richer ICU type %s" % (arg, better[arg]))
 
 
+@requires(has_member("clone"))
 def verify_clone(clazz):
     """Verify that clone() isn't implemented; see EJ page 61."""
     for m in clazz.methods:
         if m.name == "clone":
             error(clazz, m, None, "Provide an explicit copy constructor instead of implementing clone()")
 
-def verify_enum_annotations(clazz):
-    ENUM_ANNOTATIONS = [
-        "android.support.annotation.IntDef",
-        "android.support.annotation.LongDef",
-        "android.support.annotation.StringDef",
-        "androidx.annotation.IntDef",
-        "androidx.annotation.LongDef",
-        "androidx.annotation.StringDef"
-    ]
+ENUM_ANNOTATIONS = [
+    "android.support.annotation.IntDef",
+    "android.support.annotation.LongDef",
+    "android.support.annotation.StringDef",
+    "androidx.annotation.IntDef",
+    "androidx.annotation.LongDef",
+    "androidx.annotation.StringDef"
+]
 
+@requires(annotated(*ENUM_ANNOTATIONS))
+def verify_enum_annotations(clazz):
     for a in clazz.annotations:
         if a.typ.name in ENUM_ANNOTATIONS:
             error(clazz, a, "GV8", "@IntDef, @LongDef, @StringDef should not appear in the API, make the @interface package private.")
@@ -1683,6 +2072,9 @@ def get_deprecation_schedule_annotation(subject):
             return a
     return None
 
+# The annotations are only known once the arguments have been parsed
+@requires(lambda facts: DEPRECATION_SCHEDULE_ANNOTATION is not None,
+          lambda facts: annotated(DEPRECATED_ANNOTATION, DEPRECATION_SCHEDULE_ANNOTATION)(facts))
 def verify_deprecated_annotations(clazz):
     if DEPRECATION_SCHEDULE_ANNOTATION is None:
         # --deprecation-annotation not specified, nothing to check
@@ -1730,6 +2122,174 @@ def verify_deprecated_annotations(clazz):
         check_member(f)
 
 
+# The rules examine_clazz runs on every class, in order. Rules without
+# preconditions run on every class.
+RULES = [
+    verify_constants,
+    verify_enums,
+    verify_class_names,
+    verify_method_names,
+    verify_callbacks,
+    verify_listeners,
+    verify_actions,
+    verify_extras,
+    verify_equals,
+    verify_parcelable,
+    verify_protected,
+    verify_fields,
+    verify_register,
+    verify_sync,
+    verify_intent_builder,
+    verify_helper_classes,
+    verify_builder,
+    verify_aidl,
+    verify_internal,
+    verify_layering,
+    verify_boolean,
+    verify_collections,
+    verify_flags,
+    verify_exception,
+    verify_google,
+    verify_bitset,
+    verify_manager,
+    verify_boxed,
+    verify_static_utils,
+    # verify_overload_args,
+    verify_callback_handlers,
+    verify_context_first,
+    verify_listener_last,
+    verify_resource_names,
+    verify_files,
+    verify_manager_list,
+    verify_abstract_inner,
+    verify_runtime_exceptions,
+    verify_error,
+    verify_units,
+    verify_closable,
+    verify_member_name_not_kotlin_keyword,
+    verify_method_name_not_kotlin_operator,
+    verify_collections_over_arrays,
+    verify_user_handle,
+    verify_params,
+    verify_services,
+    verify_tense,
+    verify_icu,
+    verify_clone,
+    verify_final_fields_only_class,
+    verify_threading_annotations,
+    verify_nullability_annotations,
+    verify_default_impl,
+    verify_enum_annotations,
+    verify_deprecated_annotations,
+]
+
+for rule in RULES:
+    if not hasattr(rule, "preconditions"):
+        rule.preconditions = []
+
+# Every distinct precondition of RULES, and the rules that apply for each
+# combination of their results
+_preconditions = list(dict.fromkeys(p for r in RULES for p in r.preconditions))
+_applicable_rules = {}
+
+def applicable_rules(facts):
+    """The RULES whose preconditions hold for facts, in order."""
+    key = tuple(p(facts) for p in _preconditions)
+    rules = _applicable_rules.get(key)
+    if rules is None:
+        holds = dict(zip(_preconditions, key))
+        rules = [r for r in RULES if all(holds[p] for p in r.preconditions)]
+        _applicable_rules[key] = rules
+    return rules
+
+
+class Profile():
+    """Wall time and call count of the rules, the phases and the classes of
+    a run, see --profile."""
+    # Phases that are timed, nested phases are included in the time of the
+    # phase that calls them.
+    PHASES = ["_parse_stream", "read_map", "verify_compat", "verify_packages",
+              "dump_result_json"]
+    SLOWEST_CLASSES = 20
+
+    def __init__(self):
+        self.start = time.perf_counter()
+        self.phases = {}
+        self.rules = {}
+        self.classes = []
+
+    def _record(self, table, name, elapsed):
+        entry = table.get(name)
+        if entry is None:
+            table[name] = [1, elapsed]
+        else:
+            entry[0] += 1
+            entry[1] += elapsed
+
+    def wrap(self, fn):
+        """Returns fn, recording its calls as a phase."""
+        def profiled(*args, **kwargs):
+            start = time.perf_counter()
+            try:
+                return fn(*args, **kwargs)
+            finally:
+                self._record(self.phases, fn.__name__, time.perf_counter() - start)
+        return profiled
+
+    def install(self, namespace):
+        """Replaces the PHASES functions in namespace with profiled ones."""
+        for name in self.PHASES:
+            namespace[name] = self.wrap(namespace[name])
+
+    def examine(self, clazz, rules):
+        """Runs rules on clazz, recording each of them."""
+        class_start = time.perf_counter()
+        for rule in rules:
+            start = time.perf_counter()
+            rule(clazz)
+            self._record(self.rules, rule.__name__, time.perf_counter() - start)
+        elapsed = time.perf_counter() - class_start
+        self._record(self.phases, "examine_clazz", elapsed)
+        self.classes.append((elapsed, clazz.fullname))
+
+    def merge(self, other):
+        """Adds the records of a profile made by a worker process."""
+        for table, others in [(self.phases, other.phases), (self.rules, other.rules)]:
+            for name, (calls, elapsed) in others.items():
+                entry = table.setdefault(name, [0, 0.0])
+                entry[0] += calls
+                entry[1] += elapsed
+        self.classes.extend(other.classes)
+
+    def json(self):
+        def table(records):
+            return {name: {'calls': calls, 'time': elapsed}
+                    for name, (calls, elapsed) in records.items()}
+
+        slowest = heapq.nlargest(self.SLOWEST_CLASSES, self.classes)
+        return {
+            'time': time.perf_counter() - self.start,
+            'peak_rss_kb': peak_rss_kb(),
+            'phases': table(self.phases),
+            'rules': table(self.rules),
+            'classes': {
+                'count': len(self.classes),
+                'slowest': [{'class': name, 'time': elapsed} for elapsed, name in slowest],
+            },
+        }
+
+
+def peak_rss_kb():
+    """Peak resident set size of this process and its children in KB, which
+    includes the previous runs when running in lint-server.py."""
+    if resource is None:
+        return None
+    peak = max(resource.getrusage(resource.RUSAGE_SELF).ru_maxrss,
+               resource.getrusage(resource.RUSAGE_CHILDREN).ru_maxrss)
+    # ru_maxrss is in bytes on macOS
+    return peak // 1024 if sys.platform == "darwin" else peak
+
+
 def examine_clazz(clazz):
     """Find all style issues in the given class."""
 
@@ -1743,73 +2303,148 @@ def examine_clazz(clazz):
     if clazz.pkg.name.startswith("org.w3c"): return
     if clazz.pkg.name.startswith("android.icu."): return
 
-    verify_constants(clazz)
-    verify_enums(clazz)
-    verify_class_names(clazz)
-    verify_method_names(clazz)
-    verify_callbacks(clazz)
-    verify_listeners(clazz)
-    verify_actions(clazz)
-    verify_extras(clazz)
-    verify_equals(clazz)
-    verify_parcelable(clazz)
-    verify_protected(clazz)
-    verify_fields(clazz)
-    verify_register(clazz)
-    verify_sync(clazz)
-    verify_intent_builder(clazz)
-    verify_helper_classes(clazz)
-    verify_builder(clazz)
-    verify_aidl(clazz)
-    verify_internal(clazz)
-    verify_layering(clazz)
-    verify_boolean(clazz)
-    verify_collections(clazz)
-    verify_flags(clazz)
-    verify_exception(clazz)
-    if not ALLOW_GOOGLE: verify_google(clazz)
-    verify_bitset(clazz)
-    verify_manager(clazz)
-    verify_boxed(clazz)
-    verify_static_utils(clazz)
-    # verify_overload_args(clazz)
-    verify_callback_handlers(clazz)
-    verify_context_first(clazz)
-    verify_listener_last(clazz)
-    verify_resource_names(clazz)
-    verify_files(clazz)
-    verify_manager_list(clazz)
-    verify_abstract_inner(clazz)
-    verify_runtime_exceptions(clazz)
-    verify_error(clazz)
-    verify_units(clazz)
-    verify_closable(clazz)
-    verify_member_name_not_kotlin_keyword(clazz)
-    verify_method_name_not_kotlin_operator(clazz)
-    verify_collections_over_arrays(clazz)
-    verify_user_handle(clazz)
-    verify_params(clazz)
-    verify_services(clazz)
-    verify_tense(clazz)
-    verify_icu(clazz)
-    verify_clone(clazz)
-    verify_final_fields_only_class(clazz)
-    verify_threading_annotations(clazz)
-    verify_nullability_annotations(clazz)
-    verify_default_impl(clazz)
-    verify_enum_annotations(clazz)
-    verify_deprecated_annotations(clazz)
-
-
-def examine_stream(stream, api_map):
+    rules = applicable_rules(ClassFacts(clazz))
+    if PROFILE is not None:
+        PROFILE.examine(clazz, rules)
+        return
+
+    for rule in rules:
+        rule(clazz)
+
+
+def examine_stream(stream, api_map, jobs=1):
     """Find all style issues in the given API stream."""
     global failures, noticed
     failures = {}
     noticed = {}
-    api = _parse_stream(stream, api_map, examine_clazz)
+    if jobs > 1 and "fork" not in multiprocessing.get_all_start_methods():
+        print("--jobs needs the fork start method, which is not available on this "
+              "platform. Examining the classes in this process.", file=sys.stderr)
+        jobs = 1
+    if jobs > 1:
+        classes = []
+        api = _parse_stream(stream, api_map, classes.append)
+        _examine_in_parallel(classes, jobs)
+    else:
+        api = _parse_stream(stream, api_map, examine_clazz)
     return (failures, noticed, api)
 
 
+# Classes examined by the worker processes, which inherit them through fork
+_examined_classes = []
+
+def _examine_chunk(span):
+    global failures, noticed, PROFILE
+    failures = {}
+    noticed = {}
+    if PROFILE is not None:
+        PROFILE = Profile()
+    for clazz in _examined_classes[span[0]:span[1]]:
+        examine_clazz(clazz)
+    return (list(failures.items()), PROFILE)
+
+def _examine_in_parallel(classes, jobs):
+    """Same as calling examine_clazz on each class in order, using jobs
+    processes. Each process examines contiguous chunks of classes and the
+    failures are merged in the order of the chunks."""
+    global _examined_classes
+    size = max(1, -(-len(classes) // (jobs * 4)))
+    spans = [(i, min(i + size, len(classes))) for i in range(0, len(classes), size)]
+
+    _examined_classes = classes
+    try:
+        with multiprocessing.get_context("fork").Pool(jobs) as pool:
+            results = pool.map(_examine_chunk, spans, chunksize=1)
+    finally:
+        _examined_classes = []
+
+    for clazz in classes:
+        notice(clazz)
+    for result, profile in results:
+        for sig, failure in result:
+            failures[sig] = failure
+        if profile is not None:
+            PROFILE.merge(profile)
+
+
+# Number of parsed APIs kept in the --model-cache directory
+MODEL_CACHE_SIZE = 4
+
+def _model_cache_key(text, api_map):
+    digest = hashlib.sha1()
+    # The failures depend on the options and their messages on USE_COLOR
+    options = (ALLOW_GOOGLE, USE_COLOR, DEPRECATION_SCHEDULE_ANNOTATION, LIBRARY_VERSION)
+    if isinstance(api_map, BinaryApiMap):
+        map_text = api_map.digest()
+    else:
+        map_text = "".join(api_map) if api_map is not None else ""
+    parts = [repr(options), text, map_text]
+    if "__file__" in globals():
+        with open(__file__, encoding='UTF-8') as f:
+            parts.append(f.read())
+    for part in parts:
+        digest.update(part.encode('UTF-8'))
+        digest.update(b"\0")
+    return digest.hexdigest()
+
+def examine_stream_cached(stream, api_map, cache_dir, jobs=1):
+    """Same as examine_stream, but reuses the result stored in cache_dir by a
+    previous run with the same API text, map and options."""
+    global failures, noticed
+    if cache_dir is None:
+        return examine_stream(stream, api_map, jobs)
+
+    text = stream.read()
+    path = os.path.join(cache_dir, _model_cache_key(text, api_map) + ".pickle")
+    try:
+        with open(path, 'rb') as f:
+            failures, noticed, api = pickle.load(f)
+        os.utime(path)
+        return (failures, noticed, api)
+    except FileNotFoundError:
+        pass
+    except Exception:
+        # Unreadable entry, e.g. a partial write, just parse again
+        pass
+
+    result = examine_stream(io.StringIO(text), api_map, jobs)
+
+    write_cache_entry(path, result)
+    prune_cache(cache_dir, MODEL_CACHE_SIZE)
+    return result
+
+def write_cache_entry(path, value):
+    """Pickles value to path atomically, so that concurrent runs sharing the
+    cache never read a partial entry."""
+    os.makedirs(os.path.dirname(path), exist_ok=True)
+    with tempfile.NamedTemporaryFile(dir=os.path.dirname(path), suffix=".tmp", delete=False) as f:
+        try:
+            pickle.dump(value, f, pickle.HIGHEST_PROTOCOL)
+        except BaseException:
+            f.close()
+            os.remove(f.name)
+            raise
+    os.replace(f.name, path)
+
+def prune_cache(cache_dir, size):
+    """Keeps the size most recently used entries of cache_dir. Entries can
+    disappear while pruning, when other runs prune the same cache."""
+    entries = []
+    for e in os.scandir(cache_dir):
+        if not e.name.endswith(".pickle"):
+            continue
+        try:
+            entries.append((e.stat().st_mtime, e.path))
+        except FileNotFoundError:
+            pass
+    entries.sort(reverse=True)
+    for mtime, path in entries[size:]:
+        try:
+            os.remove(path)
+        except FileNotFoundError:
+            pass
+
+
 def examine_api(api):
     """Find all style issues in the given parsed API."""
     global failures
@@ -1874,92 +2509,304 @@ def verify_packages(api, allowed_packages):
         for c in clazz.ctors:
             check_method(c, extra_types)
 
-def verify_compat(cur, prev):
-    """Find any incompatible API changes between two levels."""
-    global failures
+class ApiIndex():
+    """Looks up the members of the classes of an API by ident. Indexes are
+    built the first time a class is looked up, when several members have the
+    same ident the first one is returned."""
+    def __init__(self, api):
+        self.api = api
+        self.ctors = {}
+        self.fields = {}
+        self.methods = {}
+        self.inherited_methods = {}
+        self.annotations = {}
+
+    @staticmethod
+    def by_ident(members):
+        index = {}
+        for m in members:
+            index.setdefault(m.ident, m)
+        return index
+
+    def all_methods(self, clazz):
+        """Methods of clazz followed by the ones of its superclasses."""
+        methods = self.inherited_methods.get(clazz.fullname)
+        if methods is None:
+            methods = list(clazz.methods)
+            if clazz.extends is not None and clazz.extends.name in self.api:
+                methods.extend(self.all_methods(self.api[clazz.extends.name]))
+            self.inherited_methods[clazz.fullname] = methods
+        return methods
 
-    def class_exists(api, test):
-        return test.fullname in api
+    def find_ctor(self, clazz, test):
+        if clazz.fullname not in self.ctors:
+            self.ctors[clazz.fullname] = ApiIndex.by_ident(clazz.ctors)
+        return self.ctors[clazz.fullname].get(test.ident)
 
-    def find_ctor(api, clazz, test):
-        for m in clazz.ctors:
-            if m.ident == test.ident: return m
-        return None
+    def find_method(self, clazz, test):
+        if clazz.fullname not in self.methods:
+            self.methods[clazz.fullname] = ApiIndex.by_ident(self.all_methods(clazz))
+        return self.methods[clazz.fullname].get(test.ident)
 
-    def all_methods(api, clazz):
-        methods = list(clazz.methods)
-        if clazz.extends is not None and clazz.extends.name in api:
-            methods.extend(all_methods(api, api[clazz.extends.name]))
-        return methods
+    def field_exists(self, clazz, test):
+        if clazz.fullname not in self.fields:
+            self.fields[clazz.fullname] = ApiIndex.by_ident(clazz.fields)
+        return test.ident in self.fields[clazz.fullname]
 
-    def find_method(api, clazz, test):
-        methods = all_methods(api, clazz)
-        for m in methods:
-            if m.ident == test.ident: return m
-        return None
+    def annotation_exists(self, subject, test):
+        """Whether the class, method or constructor subject has the annotation test."""
+        # Keyed by id, hashing a Class would hash all of its members
+        if id(subject) not in self.annotations:
+            self.annotations[id(subject)] = ApiIndex.by_ident(subject.annotations)
+        return test.ident in self.annotations[id(subject)]
 
-    def field_exists(api, clazz, test):
-        for f in clazz.fields:
-            if f.ident == test.ident: return True
-        return False
 
-    def annotation_exists(api, clazz, test):
-        for a in clazz.annotations:
-            if a.ident == test.ident: return True
+def _deprecated_version_matches(test):
+    annotation = get_deprecation_schedule_annotation(test)
+    if annotation is None:
         return False
+    return int(annotation.arguments['version']) == LIBRARY_VERSION
 
-    def deprecated_version_matches(test):
-        annotation = get_deprecation_schedule_annotation(test)
-        if annotation is None:
-            return False
-        return int(annotation.arguments['version']) == LIBRARY_VERSION
+def _verify_class_compat(cur, prev_clazz, cur_index, prev_index):
+    if not prev_clazz.fullname in cur:
+        if _deprecated_version_matches(prev_clazz):
+            return
+        error(prev_clazz, None, None, "Class removed or incompatible change")
+        return
+
+    cur_clazz = cur[prev_clazz.fullname]
+
+    for test in prev_clazz.annotations:
+        if not cur_index.annotation_exists(cur_clazz, test):
+            error(prev_clazz, test, None, "Annotation removed or incompatible change")
+
+    for test in prev_clazz.ctors:
+        cur_ctor = cur_index.find_ctor(cur_clazz, test)
+        if not cur_ctor:
+            if _deprecated_version_matches(test):
+                break
+            error(prev_clazz, test, None, "Constructor removed or incompatible change")
+            break
+        for prev_annotation in test.annotations:
+            if not cur_index.annotation_exists(cur_ctor, prev_annotation):
+                error(prev_clazz, prev_annotation, None, "Annotation removed or incompatible change")
+
+    methods = prev_index.all_methods(prev_clazz)
+    for test in methods:
+        cur_method = cur_index.find_method(cur_clazz, test)
+        if not cur_method:
+            if _deprecated_version_matches(test):
+                break
+            error(prev_clazz, test, None, "Method removed or incompatible change")
+            break
+        for prev_annotation in test.annotations:
+            if not cur_index.annotation_exists(cur_method, prev_annotation):
+                error(prev_clazz, prev_annotation, None, "Annotation removed or incompatible change")
+
+    for test in prev_clazz.fields:
+        if not cur_index.field_exists(cur_clazz, test):
+            if _deprecated_version_matches(test):
+                break
+            error(prev_clazz, test, None, "Field removed or incompatible change")
+
+def verify_compat(cur, prev):
+    """Find any incompatible API changes between two levels."""
+    global failures
+
+    cur_index = ApiIndex(cur)
+    prev_index = ApiIndex(prev)
 
     failures = {}
     for key in sorted(prev.keys()):
-        prev_clazz = prev[key]
+        _verify_class_compat(cur, prev[key], cur_index, prev_index)
 
-        if not class_exists(cur, prev_clazz):
-            if deprecated_version_matches(prev_clazz):
-                continue
-            error(prev_clazz, None, None, "Class removed or incompatible change")
-            continue
+    return failures
 
-        cur_clazz = cur[key]
+def verify_compat_streaming(cur_path, prev_path, api_map):
+    """Same as verify_compat on the API files at cur_path and prev_path, but
+    without parsing them entirely.
+
+    The previous API is walked class by class in file order. Since ApiDoclet
+    writes both files in the same order, the current API is read mostly
+    sequentially too. The order is not checked: ApiDoclet sorts by modifiers
+    and simple names, which the class names alone do not tell, and the
+    superclasses of a class can be anywhere in the file. Classes are looked up
+    by name instead, so memory grows with the offset of every class in the
+    index, around half a kilobyte per class, besides the class being checked,
+    its superclasses and a few recent classes."""
+    global failures
 
-        for test in prev_clazz.annotations:
-            if not annotation_exists(cur, cur_clazz, test):
-                error(prev_clazz, test, None, "Annotation removed or incompatible change")
+    cur = IndexedApi(cur_path, api_map)
+    prev = IndexedApi(prev_path, api_map)
+    try:
+        failures = {}
+        for key in prev.keys():
+            # Fresh indexes, so that they only hold the classes of this check
+            _verify_class_compat(cur, prev[key], ApiIndex(cur), ApiIndex(prev))
+    finally:
+        cur.close()
+        prev.close()
+
+    return failures
 
-        for test in prev_clazz.ctors:
-            cur_ctor = find_ctor(cur, cur_clazz, test)
-            if not cur_ctor:
-                if deprecated_version_matches(test):
-                    break
-                error(prev_clazz, test, None, "Constructor removed or incompatible change")
-                break
-            for prev_annotation in test.annotations:
-                if not annotation_exists(cur, cur_ctor, prev_annotation):
-                    error(prev_clazz, prev_annotation, None, "Annotation removed or incompatible change")
-
-        methods = all_methods(prev, prev_clazz)
-        for test in methods:
-            cur_method = find_method(cur, cur_clazz, test)
-            if not cur_method:
-                if deprecated_version_matches(test):
-                    break
-                error(prev_clazz, test, None, "Method removed or incompatible change")
-                break
-            for prev_annotation in test.annotations:
-                if not annotation_exists(cur, cur_method, prev_annotation):
-                    error(prev_clazz, prev_annotation, None, "Annotation removed or incompatible change")
 
-        for test in prev_clazz.fields:
-            if not field_exists(cur, cur_clazz, test):
-                if deprecated_version_matches(test):
+class ClassResultCache():
+    """Failures of single classes found by previous runs, by the result
+    fingerprint of the class. There is one file per set of options, it only
+    keeps the classes of the APIs of the last run."""
+    # Number of files, i.e. sets of options, kept in the directory
+    SIZE = 4
+
+    def __init__(self, cache_dir, allowed_packages):
+        digest = hashlib.sha1()
+        # Failures show paths relative to the working directory
+        options = (ALLOW_GOOGLE, USE_COLOR, DEPRECATION_SCHEDULE_ANNOTATION, LIBRARY_VERSION,
+                   allowed_packages, os.getcwd())
+        digest.update(repr(options).encode('UTF-8'))
+        if "__file__" in globals():
+            with open(__file__, 'rb') as f:
+                digest.update(f.read())
+        self.cache_dir = cache_dir
+        self.path = os.path.join(cache_dir, digest.hexdigest() + ".pickle")
+        self.entries = {}
+        self.used = {}
+        try:
+            with open(self.path, 'rb') as f:
+                self.entries = pickle.load(f)
+        except FileNotFoundError:
+            pass
+        except Exception:
+            # Unreadable file, e.g. a partial write, just examine again
+            pass
+
+    def get(self, fingerprint):
+        entry = self.entries.get(fingerprint)
+        if entry is not None:
+            self.used[fingerprint] = entry
+        return entry
+
+    def put(self, fingerprint, entry):
+        self.used[fingerprint] = entry
+
+    def save(self):
+        os.makedirs(self.cache_dir, exist_ok=True)
+        with tempfile.NamedTemporaryFile(dir=self.cache_dir, suffix=".tmp", delete=False) as f:
+            pickle.dump(self.used, f, pickle.HIGHEST_PROTOCOL)
+        os.replace(f.name, self.path)
+
+        entries = sorted((e for e in os.scandir(self.cache_dir) if e.name.endswith(".pickle")),
+                         key=lambda e: e.stat().st_mtime, reverse=True)
+        for e in entries[ClassResultCache.SIZE:]:
+            os.remove(e.path)
+
+def _examine_class(clazz, allowed_packages):
+    """Failures of examine_clazz and verify_packages for clazz alone."""
+    global failures
+    failures = {}
+    examine_clazz(clazz)
+    result = {'examine': list(failures.items()), 'packages': []}
+    if allowed_packages is not None:
+        failures = {}
+        verify_packages({clazz.fullname: clazz}, allowed_packages)
+        result['packages'] = list(failures.items())
+    return result
+
+# Stands in for a parsed class in the noticed and removed lists, which only need its location
+NoticedClass = collections.namedtuple('NoticedClass', ['location'])
+
+def lint_incremental(cur_path, prev_path, api_map, cache_dir, allowed_packages):
+    """Same results as examining and comparing the whole APIs, as returned by
+    (cur_fail, cur_noticed, removed, compat_fail), but only the classes that
+    changed are parsed.
+
+    The failures of each class are kept in cache_dir by fingerprint, so that a
+    class is only examined again when its lines, its imports or their source
+    locations change. Without prev_path, every class is looked up in the cache.
+    With prev_path, classes that resolve to the same types in both APIs have no
+    new failures and only the classes that changed, and their subclasses, are
+    checked for compatibility."""
+    global failures, noticed
+
+    cache = ClassResultCache(cache_dir, allowed_packages)
+    cur = IndexedApi(cur_path, api_map, fingerprints=True)
+    # Like lint(), the previous API is read with the map of the current one
+    prev = IndexedApi(prev_path, api_map, fingerprints=True) if prev_path is not None else None
+    try:
+        def examined(api, name):
+            fingerprint = api.fingerprints[name].result
+            entry = cache.get(fingerprint)
+            if entry is None:
+                entry = _examine_class(api[name], allowed_packages)
+                cache.put(fingerprint, entry)
+            return entry
+
+        noticed = {}
+        if prev is None:
+            changed = list(cur.keys())
+        else:
+            changed = [name for name in cur.keys() if name not in prev
+                       or cur.fingerprints[name].model != prev.fingerprints[name].model]
+
+        cur_fail = {}
+        for name in changed:
+            cur_fail.update(examined(cur, name)['examine'])
+        if prev is not None:
+            # ignore errors from previous API level
+            for name in changed:
+                if name in prev:
+                    for sig, _ in examined(prev, name)['examine']:
+                        cur_fail.pop(sig, None)
+
+        cur_noticed = collections.OrderedDict(
+            (name, NoticedClass(cur.location(name))) for name in cur.keys()
+            if prev is None or name not in prev
+            or cur.fingerprints[name].text != prev.fingerprints[name].text)
+        removed = {}
+        compat_fail = []
+
+        if prev is not None:
+            removed = collections.OrderedDict(
+                (name, NoticedClass(prev.location(name))) for name in prev.keys()
+                if name not in cur)
+
+            # A class can only become incompatible if it, or one of its
+            # superclasses, changed
+            checked = set(name for name in prev.keys() if name not in cur
+                          or cur.fingerprints[name].model != prev.fingerprints[name].model)
+            names = set(name.split(".")[-1] for name in checked)
+            while True:
+                subclasses = [name for name in prev.keys() if name not in checked
+                              and prev.fingerprints[name].extends in names]
+                if not subclasses:
                     break
-                error(prev_clazz, test, None, "Field removed or incompatible change")
+                checked.update(subclasses)
+                names.update(name.split(".")[-1] for name in subclasses)
 
-    return failures
+            failures = {}
+            for key in sorted(checked):
+                # Fresh indexes, so that they only hold the classes of this check
+                _verify_class_compat(cur, prev[key], ApiIndex(cur), ApiIndex(prev))
+            compat_fail = failures
+
+        if allowed_packages is not None:
+            # Like lint(), where verify_packages adds to the result of verify_compat
+            # when there is a previous API
+            packages = cur_fail if prev is None else compat_fail
+            for name in sorted(cur.keys()):
+                packages.update(examined(cur, name)['packages'])
+
+        # Keep the classes of both APIs, the next runs likely only differ in a few
+        for api in [cur, prev] if prev is not None else []:
+            for fingerprint in api.fingerprints.values():
+                cache.get(fingerprint.result)
+
+        cache.save()
+    finally:
+        cur.close()
+        if prev is not None:
+            prev.close()
+
+    return (cur_fail, cur_noticed, removed, compat_fail)
 
 
 def show_deprecations_at_birth(cur, prev):
@@ -1996,26 +2843,153 @@ def show_deprecations_at_birth(cur, prev):
         print("")
 
 
+def _diff_entry(clazz, kind, subject, location):
+    entry = {
+        'class': clazz.fullname,
+        'kind': kind,
+        'member': subject.raw,
+    }
+    if location is not None:
+        entry['file'] = location.fileName
+        entry['line'] = int(location.line)
+        entry['column'] = int(location.column)
+    return entry
+
+def _diff_members(kind, cur_clazz, prev_clazz, cur_members, prev_members, diff):
+    """Matches the members by ident, members whose ident did not change but
+    whose modifiers or annotations did are reported as changed."""
+    cur_by_ident = {}
+    for m in cur_members:
+        cur_by_ident.setdefault(m.ident, m)
+
+    for p in prev_members:
+        c = cur_by_ident.pop(p.ident, None)
+        if c is None:
+            # Removed members only exist in the previous API, which has no map
+            diff['removed'].append(_diff_entry(prev_clazz, kind, p, cur_clazz.location))
+        elif c.raw != p.raw:
+            entry = _diff_entry(cur_clazz, kind, c, c.location)
+            entry['previous'] = p.raw
+            diff['changed'].append(entry)
+
+    # In the order of the current API
+    for c in cur_members:
+        if cur_by_ident.get(c.ident) is c:
+            diff['added'].append(_diff_entry(cur_clazz, kind, c, c.location))
+
+def structural_diff(cur, prev):
+    """Compares two parsed APIs class by class and member by member.
+
+    Classes are matched by name and members by ident, so that the diff does
+    not depend on the order of the members in the files. Returns the added,
+    removed and changed classes and members, with the locations of the
+    current API."""
+    diff = {'added': [], 'removed': [], 'changed': []}
+
+    # In the order of the files, which the doclet sorts already
+    removed_names = [name for name in prev if name not in cur]
+    for name in itertools.chain(cur, removed_names):
+        cur_clazz = cur.get(name)
+        prev_clazz = prev.get(name)
+
+        if prev_clazz is None:
+            diff['added'].append(_diff_entry(cur_clazz, 'class', cur_clazz, cur_clazz.location))
+            continue
+        if cur_clazz is None:
+            diff['removed'].append(_diff_entry(prev_clazz, 'class', prev_clazz, None))
+            continue
+
+        if cur_clazz.raw != prev_clazz.raw:
+            entry = _diff_entry(cur_clazz, 'class', cur_clazz, cur_clazz.location)
+            entry['previous'] = prev_clazz.raw
+            diff['changed'].append(entry)
+
+        _diff_members('ctor', cur_clazz, prev_clazz, cur_clazz.ctors, prev_clazz.ctors, diff)
+        _diff_members('method', cur_clazz, prev_clazz, cur_clazz.methods, prev_clazz.methods, diff)
+        _diff_members('field', cur_clazz, prev_clazz, cur_clazz.fields, prev_clazz.fields, diff)
+
+    return diff
+
+def show_structural_diff(diff):
+    """Prints the diff grouped by class, like the API files list them."""
+    classes = collections.OrderedDict()
+    for change, sign in [('removed', '-'), ('added', '+'), ('changed', '~')]:
+        for entry in diff[change]:
+            classes.setdefault(entry['class'], []).append((sign, entry))
+
+    if not classes:
+        return
+
+    print("%s API diff %s\n" % ((format(fg=WHITE, bg=BLUE, bold=True), format(reset=True))))
+    for name in sorted(classes):
+        print(name)
+        for sign, entry in classes[name]:
+            color = {'-': RED, '+': GREEN, '~': YELLOW}[sign]
+            print("  %s%s %s%s" % (format(fg=color), sign, entry['member'],
+                                   format(reset=True)))
+            if 'previous' in entry:
+                print("      was %s" % entry['previous'])
+            if 'file' in entry:
+                print("      at %s:%d:%d" % (entry['file'], entry['line'], entry['column']))
+        print("")
+
+
 def readResultsJson(jsonFile):
     results = {}
+    # Opened with a+, which starts at the end
+    jsonFile.seek(0)
     jsonString = jsonFile.read()
     if len(jsonString) > 0:
         results = json.loads(jsonString)
 
     return results
 
-def dump_result_json(args, compat_fail, api_changes, api_removed, failures, api_map):
-    if not 'result_json' in args or not args['result_json']:
-        return
+# Lists of the result JSON, each record of a --result-ndjson stream holds an
+# entry of one of them, like {"failures": {...}}
+RESULT_KEYS = ['failures', 'compat_failures', 'api_changes', 'api_removed']
 
-    if args['append_json']:
-      results = readResultsJson(args['result_json'])
-    else:
-      results = {}
+def _set_failure(results):
+    # Make sure ordering is consistent (helps with tests)
+    results['failures'].sort(key=lambda f: f['rule'])
 
-    for key in ['failures', 'compat_failures', 'api_changes', 'api_removed']:
-        if key not in results:
-            results[key] = []
+    results['failure'] = ((len(results['compat_failures']) != 0)
+            or (len(results['api_changes']) != 0)
+            or (len(results['api_removed']) != 0)
+            or (any(f['error'] for f in results['failures'])))
+
+def append_result_records(stream, records):
+    """Appends records, a list of (key, entry), to an NDJSON result stream.
+    They are written at once, so that the records of runs appending to the
+    same stream don't interleave, and the stream is never read back."""
+    stream.write("".join(json.dumps({key: entry}) + "\n" for key, entry in records))
+    stream.flush()
+
+def merge_result_records(lines):
+    """The result JSON of the records in the lines of NDJSON result streams.
+    A line can also be a whole result JSON, as written by --result-json."""
+    results = {key: [] for key in RESULT_KEYS}
+    metrics = []
+    for line in lines:
+        if not line.strip():
+            continue
+        for key, value in json.loads(line).items():
+            entries = metrics if key == 'metrics' else results.get(key)
+            # 'failure' is computed again from the merged lists
+            if entries is None:
+                continue
+            if isinstance(value, list):
+                entries.extend(value)
+            else:
+                entries.append(value)
+
+    _set_failure(results)
+    if metrics:
+        results['metrics'] = metrics
+    return results
+
+def dump_result_json(args, compat_fail, api_changes, api_removed, failures, api_map):
+    if not args.get('result_json') and not args.get('result_ndjson'):
+        return
 
     api_changes = [
         {
@@ -2033,75 +3007,200 @@ def dump_result_json(args, compat_fail, api_changes, api_removed, failures, api_
         } for x in api_removed
     ]
 
-    results['compat_failures'] += [compat_fail[x].json() for x in compat_fail]
-    results['api_changes'] += api_changes
-    results['api_removed'] += api_removed
-    results['failures'] += [failures[x].json() for x in failures]
+    run = {
+        'failures': [failures[x].json() for x in failures],
+        'compat_failures': [compat_fail[x].json() for x in compat_fail],
+        'api_changes': api_changes,
+        'api_removed': api_removed,
+    }
 
-    # Make sure ordering is consistent (helps with tests)
-    results['failures'].sort(key=lambda f: f['rule'])
+    if args.get('result_ndjson'):
+        append_result_records(args['result_ndjson'],
+                              [(key, entry) for key in RESULT_KEYS for entry in run[key]])
 
-    results['failure'] = ((len(results['compat_failures']) != 0)
-            or (len(results['api_changes']) != 0)
-            or (len(results['api_removed']) != 0)
-            or (any(f['error'] for f in results['failures'])))
+    if not args.get('result_json'):
+        return
+
+    if args['append_json']:
+      results = readResultsJson(args['result_json'])
+    else:
+      results = {}
+
+    for key in RESULT_KEYS:
+        if key not in results:
+            results[key] = []
+        results[key] += run[key]
+
+    _set_failure(results)
+
+    args['result_json'].seek(0)
+    args['result_json'].truncate(0)
+    json.dump(results, args['result_json'])
+
+def dump_metrics_json(args, mode):
+    """Adds the profile of this run to the metrics in the result JSON."""
+    metrics = PROFILE.json()
+    metrics['mode'] = mode
+
+    if args.get('result_ndjson'):
+        append_result_records(args['result_ndjson'], [('metrics', metrics)])
+
+    if not args.get('result_json'):
+        return
+
+    args['result_json'].seek(0)
+    results = json.load(args['result_json'])
+
+    results.setdefault('metrics', []).append(metrics)
 
     args['result_json'].seek(0)
     args['result_json'].truncate(0)
     json.dump(results, args['result_json'])
 
+def merge_results(args):
+    """Writes the result JSON of the --merge-results streams to --result-json."""
+    def lines():
+        for path in args['merge_results']:
+            with open(path, encoding='UTF-8') as f:
+                yield from f
+
+    args['result_json'].seek(0)
+    args['result_json'].truncate(0)
+    json.dump(merge_result_records(lines()), args['result_json'])
+    return 0
+
 def matches_filter(filter_, failure):
     for f in filter_:
         if failure.rule is not None and failure.rule.startswith(f):
             return True
     return False
 
-if __name__ == "__main__":
-    parser = argparse.ArgumentParser(description="Enforces common Android public API design \
-            patterns. It ignores lint messages from a previous API level, if provided.")
-    parser.add_argument("current.txt", type=argparse.FileType('r', encoding='UTF-8'), help="current.txt")
-    parser.add_argument("previous.txt", nargs='?', type=argparse.FileType('r', encoding='UTF-8'), default=None,
-            help="previous.txt")
-    parser.add_argument("--no-color", action='store_const', const=True,
-            help="Disable terminal colors")
-    parser.add_argument("--allow-google", action='store_const', const=True,
-            help="Allow references to Google")
-    parser.add_argument("--show-noticed", action='store_const', const=True,
-            help="Show API changes noticed")
-    parser.add_argument("--show-deprecations-at-birth", action='store_const', const=True,
-            help="Show API deprecations at birth")
-    parser.add_argument("--filter-errors", nargs='*',
-            help="Provide a list of erorr codes to consider. Filter will "
-            "select only error codes that starts with the codes specified.")
-    parser.add_argument("--allowed-packages", nargs='*',
-            help="Restrict API to the packages specified in this argument.")
-    parser.add_argument("--deprecation-annotation", nargs='?',
-            help="Additional annotation that needs to be present with a deprecated member.")
-    parser.add_argument("--library-version", nargs='?',
-            help="Integer representing the current library version")
-    parser.add_argument("--result-json", help="Put result in JSON file.", type=argparse.FileType('a+', encoding='UTF-8'))
-    parser.add_argument("--append-json", help="Append results to the JSON file instead of truncating it.", action='store_const', const=True)
-    parser.add_argument("--api-map", help="File containing a map from the api.txt file to the source files.", type=argparse.FileType('r'))
-    args = vars(parser.parse_args())
+# Options that don't change the results of a run
+VARIANT_OPTIONS_IGNORED = ['result_json', 'append_json', 'result_ndjson', 'jobs', 'model_cache',
+                           'class_cache', 'profile', 'variants']
+
+def _variant_key(args):
+    """Identifies the runs that read identical files with the same options."""
+    digest = hashlib.sha1()
+    for name in ['current.txt', 'previous.txt', 'api_map']:
+        path = args[name].name if hasattr(args[name], 'name') else args[name]
+        if path is not None:
+            with open(path, 'rb') as f:
+                for chunk in iter(lambda: f.read(1 << 20), b""):
+                    digest.update(chunk)
+        digest.update(b"\0")
+    options = {k: v for k, v in args.items()
+               if k not in VARIANT_OPTIONS_IGNORED
+               and k not in ['current.txt', 'previous.txt', 'api_map']}
+    digest.update(json.dumps(options, sort_keys=True).encode('UTF-8'))
+    return digest.hexdigest()
+
+def _read_result(args, ndjson_start):
+    """The result JSON written by the run of args, ndjson_start is where its
+    records start in the --result-ndjson stream."""
+    if args['result_json']:
+        args['result_json'].flush()
+        args['result_json'].seek(0)
+        result = args['result_json'].read()
+        return json.loads(result) if result else None
+    if args['result_ndjson']:
+        args['result_ndjson'].flush()
+        args['result_ndjson'].seek(ndjson_start)
+        return merge_result_records(args['result_ndjson'])
+    return None
 
-    if args['no_color']:
-        USE_COLOR = False
+def lint_variants(parser, args):
+    """Runs the command lines listed in the --variants file.
 
-    if args['deprecation_annotation']:
-        DEPRECATION_SCHEDULE_ANNOTATION = args['deprecation_annotation']
+    The file is a JSON list of {"name": ..., "args": [...]}, e.g. one entry per
+    build variant. Entries whose API files and options are identical only run
+    once, and the result of that run is copied to all of them."""
+    global USE_COLOR
 
-    if args['library_version']:
-        LIBRARY_VERSION = int(args['library_version'])
+    if args['no_color']:
+        USE_COLOR = False
 
-    if args['allow_google']:
-        ALLOW_GOOGLE = True
+    with open(args['variants'], encoding='UTF-8') as f:
+        variants = json.load(f)
+
+    groups = collections.OrderedDict()
+    for index, variant in enumerate(variants):
+        variant_args = vars(parser.parse_args(variant['args']))
+        # Marks the run as part of --variants, the metrics are only added once at the end
+        variant_args['variants'] = args['variants']
+        variant_args['no_color'] = variant_args['no_color'] or args['no_color']
+        groups.setdefault(_variant_key(variant_args), []).append(
+            (index, variant['name'], variant_args))
+
+    # In the order of the --variants file
+    summary = [None] * len(variants)
+    for group in groups.values():
+        # Run the one that has a result file, if any, so that there is something to copy
+        group.sort(key=lambda v: v[2]['result_json'] is None and v[2]['result_ndjson'] is None)
+        _, name, first = group[0]
+
+        print("%s %s %s\n" % (format(fg=WHITE, bg=BLUE, bold=True),
+                               ", ".join(n for _, n, _ in group), format(reset=True)))
+        ndjson_start = first['result_ndjson'].tell() if first['result_ndjson'] else None
+        code = lint(first)
+        result = _read_result(first, ndjson_start)
+
+        for index, variant_name, variant_args in group:
+            if variant_args is not first:
+                for f in ['current.txt', 'previous.txt']:
+                    if variant_args[f] is not None:
+                        variant_args[f].close()
+                if result is not None and variant_args['result_json']:
+                    variant_args['result_json'].seek(0)
+                    variant_args['result_json'].truncate(0)
+                    json.dump(result, variant_args['result_json'])
+                if result is not None and variant_args['result_ndjson']:
+                    append_result_records(variant_args['result_ndjson'],
+                        [(key, entry) for key in RESULT_KEYS for entry in result[key]])
+            for f in ['result_json', 'result_ndjson']:
+                if variant_args[f]:
+                    variant_args[f].close()
+            summary[index] = {
+                'name': variant_name,
+                'exit': code,
+                'same_as': None if variant_args is first else name,
+                'result': result,
+            }
+
+    if args['result_json']:
+        args['result_json'].seek(0)
+        args['result_json'].truncate(0)
+        json.dump({
+            'variants': summary,
+            'failure': any(v['result'] is not None and v['result']['failure'] for v in summary),
+        }, args['result_json'])
+        if PROFILE is not None:
+            dump_metrics_json(args, "variants")
+
+    # Same priority as a single run: compatibility issues first, then errors
+    codes = [v['exit'] for v in summary]
+    for code in [131, 77, 10]:
+        if code in codes:
+            return code
+    return max(codes, default=0)
+
+
+def lint(args):
+    """Runs apilint with the parsed command line args, returns the exit code."""
+    global USE_COLOR, DEPRECATION_SCHEDULE_ANNOTATION, LIBRARY_VERSION, ALLOW_GOOGLE
+
+    # Set every time, --variants runs several command lines in the same process
+    USE_COLOR = not args['no_color']
+    DEPRECATION_SCHEDULE_ANNOTATION = args['deprecation_annotation']
+    LIBRARY_VERSION = int(args['library_version']) if args['library_version'] else None
+    ALLOW_GOOGLE = bool(args['allow_google'])
 
     current_file = args['current.txt']
     previous_file = args['previous.txt']
 
     api_map = None
     if args['api_map']:
-        api_map = args['api_map'].readlines()
+        api_map = load_api_map(args['api_map'])
 
     if args['show_deprecations_at_birth']:
         with current_file as f:
@@ -2109,41 +3208,80 @@ if __name__ == "__main__":
         with previous_file as f:
             prev = _parse_stream(f, api_map)
         show_deprecations_at_birth(cur, prev)
-        sys.exit()
+        return 0
+
+    if args['structural_diff']:
+        with current_file as f:
+            cur = _parse_stream(f, api_map)
+        # The map belongs to the current API
+        with previous_file as f:
+            prev = _parse_stream(f, None)
+        diff = structural_diff(cur, prev)
+        show_structural_diff(diff)
+        if args['result_json']:
+            args['result_json'].seek(0)
+            args['result_json'].truncate(0)
+            json.dump(diff, args['result_json'])
+            if PROFILE is not None and not args['variants']:
+                dump_metrics_json(args, "diff")
+        return 10 if any(diff.values()) else 0
+
+    if args['streaming_compat']:
+        current_file.close()
+        previous_file.close()
+        compat_fail = verify_compat_streaming(current_file.name, previous_file.name, api_map)
+        dump_result_json(args, compat_fail, [], [], {}, api_map)
+        if PROFILE is not None and not args['variants']:
+            dump_metrics_json(args, "streaming_compat")
+        if len(compat_fail) != 0:
+            print("%s API compatibility issues %s\n" % ((format(fg=WHITE, bg=BLUE, bold=True), format(reset=True))))
+            for f in sorted(compat_fail):
+                print(compat_fail[f])
+                print("")
+            return 131
+        return 0
 
     compat_fail = []
     removed = {}
 
-    with current_file as f:
-        cur_fail, cur_noticed, cur = examine_stream(f, api_map)
-    if not previous_file is None:
-        with previous_file as f:
-            prev_fail, prev_noticed, prev = examine_stream(f, api_map)
+    if args['class_cache']:
+        current_file.close()
+        if previous_file is not None:
+            previous_file.close()
+        cur_fail, cur_noticed, removed, compat_fail = lint_incremental(
+            current_file.name, previous_file.name if previous_file is not None else None,
+            api_map, args['class_cache'], args['allowed_packages'])
+    else:
+        with current_file as f:
+            cur_fail, cur_noticed, cur = examine_stream_cached(f, api_map, args['model_cache'], args['jobs'])
+        if not previous_file is None:
+            with previous_file as f:
+                prev_fail, prev_noticed, prev = examine_stream_cached(f, api_map, args['model_cache'], args['jobs'])
 
-        removed = prev_noticed.copy()
+            removed = prev_noticed.copy()
 
-        # ignore errors from previous API level
-        for p in prev_fail:
-            if p in cur_fail:
-                del cur_fail[p]
+            # ignore errors from previous API level
+            for p in prev_fail:
+                if p in cur_fail:
+                    del cur_fail[p]
 
-        # ignore classes unchanged from previous API level
-        for k, v in prev_noticed.items():
-            if k in cur_noticed and hash(v) == hash(cur_noticed[k]):
-                del cur_noticed[k]
-                del removed[k]
+            # ignore classes unchanged from previous API level
+            for k, v in prev_noticed.items():
+                if k in cur_noticed and hash(v) == hash(cur_noticed[k]):
+                    del cur_noticed[k]
+                    del removed[k]
 
-        # look for compatibility issues
-        compat_fail = verify_compat(cur, prev)
+            # look for compatibility issues
+            compat_fail = verify_compat(cur, prev)
 
 
-    # Removed duplicates
-    for k, v in cur_noticed.items():
-        if k in removed:
-            del removed[k]
+        # Removed duplicates
+        for k, v in cur_noticed.items():
+            if k in removed:
+                del removed[k]
 
-    if args['allowed_packages'] is not None:
-        verify_packages(cur, args['allowed_packages'])
+        if args['allowed_packages'] is not None:
+            verify_packages(cur, args['allowed_packages'])
 
     # filter errors if filter was specified
     if args['filter_errors'] is not None:
@@ -2158,15 +3296,17 @@ if __name__ == "__main__":
         removed if args['show_noticed'] else [],
         cur_fail, api_map)
 
+    if PROFILE is not None and not args['variants']:
+        dump_metrics_json(args, "single" if previous_file is None else "compat")
+
     has_error = any(cur_fail[x].error for x in cur_fail)
 
     if compat_fail and len(compat_fail) != 0:
         print("%s API compatibility issues %s\n" % ((format(fg=WHITE, bg=BLUE, bold=True), format(reset=True))))
-        failures = []
         for f in sorted(compat_fail):
             print(compat_fail[f])
             print("")
-        sys.exit(131)
+        return 131
 
     if len(cur_fail) != 0:
         print("%s API style issues %s\n" % ((format(fg=WHITE, bg=BLUE, bold=True), format(reset=True))))
@@ -2174,9 +3314,9 @@ if __name__ == "__main__":
             print(cur_fail[f])
             print("")
         if has_error:
-          sys.exit(77)
+          return 77
         else:
-          sys.exit(0)
+          return 0
 
     if args['show_noticed'] and (len(cur_noticed) != 0 or len(removed) != 0):
         print("%s API changes noticed %s\n" % ((format(fg=WHITE, bg=BLUE, bold=True), format(reset=True))))
@@ -2185,5 +3325,97 @@ if __name__ == "__main__":
         for f in sorted(removed.keys()):
             print("%s removed API" % f)
         print("")
-        sys.exit(10)
+        return 10
+
+    return 0
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="Enforces common Android public API design \
+            patterns. It ignores lint messages from a previous API level, if provided.")
+    parser.add_argument("current.txt", nargs='?', type=argparse.FileType('r', encoding='UTF-8'), help="current.txt")
+    parser.add_argument("previous.txt", nargs='?', type=argparse.FileType('r', encoding='UTF-8'), default=None,
+            help="previous.txt")
+    parser.add_argument("--no-color", action='store_const', const=True,
+            help="Disable terminal colors")
+    parser.add_argument("--allow-google", action='store_const', const=True,
+            help="Allow references to Google")
+    parser.add_argument("--show-noticed", action='store_const', const=True,
+            help="Show API changes noticed")
+    parser.add_argument("--show-deprecations-at-birth", action='store_const', const=True,
+            help="Show API deprecations at birth")
+    parser.add_argument("--structural-diff", action='store_const', const=True,
+            help="Show the classes and members added, removed or changed since previous.txt "
+            "instead of linting.")
+    parser.add_argument("--streaming-compat", action='store_const', const=True,
+            help="Only check that current.txt is compatible with previous.txt, parsing one "
+            "class at a time instead of the whole files, for very large APIs.")
+    parser.add_argument("--filter-errors", nargs='*',
+            help="Provide a list of erorr codes to consider. Filter will "
+            "select only error codes that starts with the codes specified.")
+    parser.add_argument("--allowed-packages", nargs='*',
+            help="Restrict API to the packages specified in this argument.")
+    parser.add_argument("--deprecation-annotation", nargs='?',
+            help="Additional annotation that needs to be present with a deprecated member.")
+    parser.add_argument("--library-version", nargs='?',
+            help="Integer representing the current library version")
+    parser.add_argument("--result-json", help="Put result in JSON file.", type=argparse.FileType('a+', encoding='UTF-8'))
+    parser.add_argument("--append-json", help="Append results to the JSON file instead of truncating it. "
+            "--result-ndjson does not need to read the previous results.", action='store_const', const=True)
+    parser.add_argument("--result-ndjson", help="Append results to this newline-delimited JSON stream, "
+            "one record per line. --merge-results turns streams into a result JSON.",
+            type=argparse.FileType('a+', encoding='UTF-8'))
+    parser.add_argument("--merge-results", nargs='+', metavar="STREAM",
+            help="Write the results of these --result-ndjson streams to the --result-json file "
+            "instead of linting.")
+    parser.add_argument("--api-map", help="File containing a map from the api.txt file to the source files, "
+            "either api.txt.map or api.txt.map.bin.")
+    parser.add_argument("--jobs", type=int, default=1,
+            help="Number of processes used to examine the classes.")
+    parser.add_argument("--model-cache", help="Directory where the parsed APIs are kept, "
+            "so that later runs on the same API don't need to parse it again.")
+    parser.add_argument("--class-cache", help="Directory where the failures of each class are kept, "
+            "so that later runs only examine the classes that changed. Takes precedence over "
+            "--model-cache.")
+    parser.add_argument("--profile", action='store_const', const=True,
+            help="Add the time spent in each rule, phase and class and the peak RSS "
+            "to the metrics in the result JSON.")
+    parser.add_argument("--variants", help="JSON file with the command lines of several runs, "
+            "e.g. one per build variant, run in this process. Runs on identical API files "
+            "only happen once.")
+    args = vars(parser.parse_args())
+
+    if args['merge_results']:
+        if not args['result_json']:
+            parser.error("--merge-results requires --result-json")
+        sys.exit(merge_results(args))
+
+    if args['profile']:
+        if not args['result_json'] and not args['result_ndjson']:
+            parser.error("--profile requires --result-json or --result-ndjson")
+        PROFILE = Profile()
+        PROFILE.install(globals())
+
+    if args['variants']:
+        sys.exit(lint_variants(parser, args))
+
+    if args['current.txt'] is None:
+        parser.error("current.txt is required")
+
+    if args['structural_diff'] and args['previous.txt'] is None:
+        parser.error("--structural-diff requires previous.txt")
+
+    if args['structural_diff'] and args['result_ndjson']:
+        parser.error("--structural-diff writes a diff, use --result-json")
+
+    if args['class_cache'] and '<stdin>' in [f.name for f in [args['current.txt'], args['previous.txt']]
+                                             if f is not None]:
+        parser.error("--class-cache needs files, not stdin")
+
+    if args['streaming_compat']:
+        if args['previous.txt'] is None:
+            parser.error("--streaming-compat requires previous.txt")
+        if '<stdin>' in [args['current.txt'].name, args['previous.txt'].name]:
+            parser.error("--streaming-compat needs files, not stdin")
+
+    sys.exit(lint(args))
 
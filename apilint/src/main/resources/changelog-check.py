@@ -11,6 +11,7 @@ import re
 import sys
 
 API_VERSION_REGEX = re.compile(r'^\[api-version\]: ([a-f0-9]{40})$')
+FINGERPRINT_REGEX = re.compile(r'^[a-f0-9]{40}$')
 
 class MissingApiVersionError(Exception):
     pass
@@ -25,6 +26,23 @@ def findApiVersion(changelog):
 
     raise MissingApiVersionError
 
+def apiVersion(apiFile):
+    """SHA-1 of the API file, read in chunks so that it is never held in memory."""
+    sha1 = hashlib.sha1()
+    for chunk in iter(lambda: apiFile.read(1 << 20), ''):
+        sha1.update(chunk.encode('UTF-8'))
+    return sha1.hexdigest()
+
+def readFingerprint(path):
+    """SHA-1 stored in the api.txt.sha1 file written by ApiDoclet, None if
+    there is no such file."""
+    try:
+        with open(path, encoding='UTF-8') as f:
+            fingerprint = f.read().strip()
+    except FileNotFoundError:
+        return None
+    return fingerprint if FINGERPRINT_REGEX.match(fingerprint) else None
+
 def readResultsJson(jsonFile):
     results = {}
     if args.result_json is None:
@@ -41,28 +59,39 @@ def readResultsJson(jsonFile):
 if __name__ == "__main__":
     parser = argparse.ArgumentParser(description="Checks that the changelog file has been updated.")
     parser.add_argument("--api-file", type=argparse.FileType('r', encoding='UTF-8'), help="Updated API file.")
+    parser.add_argument("--api-fingerprint", help="File with the SHA-1 of the API file, "
+                        "e.g. api.txt.sha1. The API file is only read when it is missing.")
     parser.add_argument("--changelog-file", type=argparse.FileType('r', encoding='UTF-8'), help="Changelog file of the API.")
     parser.add_argument("--result-json", type=argparse.FileType('r+', encoding='UTF-8'), help="Dump results in this file.")
+    parser.add_argument("--result-ndjson", type=argparse.FileType('a', encoding='UTF-8'),
+                        help="Append results to this newline-delimited JSON stream, like apilint.py.")
     args = parser.parse_args()
 
-    sha1 = hashlib.sha1()
-    sha1.update(args.api_file.read().encode('UTF-8'))
-
-    currentApiVersion = sha1.hexdigest()
+    currentApiVersion = None
+    if args.api_fingerprint is not None:
+        currentApiVersion = readFingerprint(args.api_fingerprint)
+    if currentApiVersion is None:
+        currentApiVersion = apiVersion(args.api_file)
     results = readResultsJson(args.result_json)
 
     def dumpJsonError(info):
-        if args.result_json is None:
-            return
+        failure = None
         if info is not None:
-            results['failures'].append({
+            failure = {
                 "column": info["column"],
                 "file": args.changelog_file.name,
                 "line": info["line"],
                 "msg": info["message"],
                 "rule": info["rule"],
                 "error": True
-            })
+            }
+        if args.result_ndjson is not None and failure is not None:
+            args.result_ndjson.write(json.dumps({"failures": failure}) + "\n")
+            args.result_ndjson.flush()
+        if args.result_json is None:
+            return
+        if failure is not None:
+            results['failures'].append(failure)
         args.result_json.seek(0)
         args.result_json.truncate(0)
         json.dump(results, args.result_json)
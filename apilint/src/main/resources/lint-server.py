@@ -0,0 +1,102 @@
+#!/usr/bin/env python3
+
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+# Runs apilint.py and changelog-check.py on behalf of the Gradle plugin,
+# without starting a new interpreter for every task.
+#
+# Each line on stdin is a JSON request:
+#
+#   {"script": "/path/to/apilint.py", "args": [...], "cwd": "/path"}
+#
+# and gets a JSON line on stdout as response:
+#
+#   {"exit": 0, "stdout": "...", "stderr": "..."}
+#
+# Every request runs the script as __main__ in a fresh namespace, exactly
+# like the command line would, only the compiled code, imported modules and
+# compiled regular expressions are reused.
+#
+# One server runs one script at a time, the Gradle plugin starts as many
+# servers as there are lint tasks running concurrently.
+
+import contextlib
+import gc
+import hashlib
+import importlib.machinery
+import io
+import json
+import os
+import sys
+import traceback
+import types
+
+compiled = {}
+
+def compile_script(path):
+    with open(path, 'rb') as f:
+        source = f.read()
+    key = hashlib.sha1(source).hexdigest()
+    if key not in compiled:
+        # Through the loader, like an import, so that the bytecode is read from
+        # and written to __pycache__ and the next server doesn't compile again
+        loader = importlib.machinery.SourceFileLoader('__main__', path)
+        compiled[key] = loader.get_code('__main__')
+    return compiled[key]
+
+def exit_code(e):
+    if e.code is None:
+        return 0
+    if isinstance(e.code, int):
+        return e.code
+    # Same as the interpreter: the message goes to stderr
+    print(e.code, file=sys.stderr)
+    return 1
+
+def run(request):
+    stdout = io.StringIO()
+    stderr = io.StringIO()
+    # A real __main__ module, so that pickle can find the script's classes
+    module = types.ModuleType('__main__')
+    module.__file__ = request['script']
+    namespace = module.__dict__
+
+    cwd = os.getcwd()
+    argv = sys.argv
+    main = sys.modules['__main__']
+    code = 0
+    try:
+        os.chdir(request.get('cwd', cwd))
+        sys.argv = [request['script']] + request['args']
+        sys.modules['__main__'] = module
+        with contextlib.redirect_stdout(stdout), contextlib.redirect_stderr(stderr):
+            try:
+                exec(compile_script(request['script']), namespace)
+            except SystemExit as e:
+                code = exit_code(e)
+            except BaseException:
+                traceback.print_exc()
+                code = 1
+            finally:
+                # Close the files the script left open, like the interpreter
+                # would on exit, so that they are flushed before we answer.
+                namespace.clear()
+                gc.collect()
+    finally:
+        sys.modules['__main__'] = main
+        sys.argv = argv
+        os.chdir(cwd)
+
+    return {'exit': code, 'stdout': stdout.getvalue(), 'stderr': stderr.getvalue()}
+
+def serve(requests, responses):
+    for line in requests:
+        if not line.strip():
+            continue
+        responses.write(json.dumps(run(json.loads(line))) + "\n")
+        responses.flush()
+
+if __name__ == "__main__":
+    serve(sys.stdin, sys.stdout)
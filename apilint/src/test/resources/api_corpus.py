@@ -0,0 +1,189 @@
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+# Generates synthetic api.txt and api.txt.map files in the format ApiDoclet
+# emits, to measure apilint on APIs much larger than the test files.
+#
+# Every package has an interface and classes that form chains of subclasses
+# `depth` classes long, with methods returning generic types nested
+# `generic_nesting` times. Classes refer to the class with the same index in
+# the previous package, so that every generated class is imported.
+#
+# Revision 1 is a later version of revision 0 with added, removed, changed and
+# deprecated members and an added class in every package, so that the
+# compatibility and deprecation at birth checks have something to report.
+#
+# The output only depends on the arguments.
+
+import argparse
+
+ROOT_PACKAGE = "org.mozilla.bench"
+
+JAVA_IMPORTS = [
+    "java.lang.Comparable",
+    "java.lang.Deprecated",
+    "java.lang.String",
+    "java.util.List",
+    "java.util.Map",
+]
+
+def package_name(pkg):
+    return "%s.p%d" % (ROOT_PACKAGE, pkg)
+
+def class_name(pkg, cls):
+    return "P%dC%d" % (pkg, cls)
+
+def listener_name(pkg):
+    return "P%dListener" % pkg
+
+def added_name(pkg):
+    return "P%dAdded" % pkg
+
+def nested_type(level):
+    """Map<String,List<...T...>> nested level times, as ApiDoclet writes it."""
+    if level == 0:
+        return "T"
+    return "Map<String,List<%s>>" % nested_type(level - 1)
+
+def source_file(pkg, name):
+    return "%s/%s.java" % (package_name(pkg).replace(".", "/"), name)
+
+class Corpus:
+    """The lines of an api.txt file and of its map, one entry per line."""
+    def __init__(self):
+        self.lines = []
+        self.map = []
+
+    def add(self, line, location=""):
+        self.lines.append(line)
+        self.map.append(location)
+
+    def text(self):
+        return "".join(line + "\n" for line in self.lines)
+
+    def map_text(self):
+        return "".join(location + "\n" for location in self.map)
+
+def _listener(corpus, pkg):
+    source = source_file(pkg, listener_name(pkg))
+    corpus.add("  public interface %s<T> {" % listener_name(pkg), "%s:6:1" % source)
+    corpus.add("    method public default boolean isEnabled();", "%s:9:5" % source)
+    corpus.add("    method public void onEvent(T);", "%s:7:5" % source)
+    corpus.add("  }")
+    corpus.add("")
+
+def _class(corpus, pkg, cls, index, depth, generic_nesting, revision):
+    name = class_name(pkg, cls)
+    source = source_file(pkg, name)
+    chain_root = cls % depth == 0
+
+    if chain_root:
+        parent = "implements %s<T>" % listener_name(pkg)
+    else:
+        parent = "extends %s<T>" % class_name(pkg, cls - 1)
+    corpus.add("  public class %s<T extends Comparable<T>> %s {" % (name, parent),
+               "%s:9:1" % source)
+
+    values = nested_type(generic_nesting)
+    ctors = [("public %s();" % name, 15)]
+    methods = [
+        ("public <K extends Comparable<K>> %s method%d(K, T);" % (values, cls), 25),
+        ("public %s values(T);" % values, 19),
+    ]
+    fields = [
+        ("public static final int CONSTANT_%d = %d;" % (cls, cls), 11),
+        ("public static final String NAME = \"%s\";" % name, 13),
+    ]
+
+    # Removing a deprecated method is what happens most between two versions
+    if revision == 0 or index % 13 != 6:
+        methods.append(("@Deprecated public void deprecated%d();" % cls, 33))
+    if chain_root:
+        methods.append(("public void onEvent(T);", 23))
+    if pkg > 0:
+        previous = class_name(pkg - 1, cls)
+        methods.append(("public %s<T> previous(%s<T>);" % (previous, previous), 29))
+
+    if revision > 0:
+        if index % 5 == 1:
+            methods.append(("public int count();", 35))
+        if index % 7 == 3:
+            methods.append(("@Deprecated public void added%d();" % cls, 37))
+        if index % 17 == 8:
+            fields[0] = ("public static final int CONSTANT_%d = %d;" % (cls, cls + 1), 11)
+
+    for decl, line in ctors:
+        corpus.add("    ctor %s" % decl, "%s:%d:5" % (source, line))
+    # ApiDoclet sorts the methods by name
+    for decl, line in sorted(methods, key=lambda m: m[0].split("(")[0].split(" ")[-1]):
+        corpus.add("    method %s" % decl, "%s:%d:5" % (source, line))
+    for decl, line in fields:
+        corpus.add("    field %s" % decl, "%s:%d:5" % (source, line))
+    corpus.add("  }")
+    corpus.add("")
+
+def _added_class(corpus, pkg):
+    source = source_file(pkg, added_name(pkg))
+    corpus.add("  @Deprecated public class %s {" % added_name(pkg), "%s:7:1" % source)
+    corpus.add("    ctor public %s();" % added_name(pkg), "%s:8:5" % source)
+    corpus.add("  }")
+    corpus.add("")
+
+def generate(packages, classes, depth=4, generic_nesting=3, revision=0):
+    """Returns the Corpus of an API with packages * classes classes."""
+    depth = max(1, depth)
+    corpus = Corpus()
+
+    imports = list(JAVA_IMPORTS)
+    for pkg in range(packages):
+        imports.append("%s.%s" % (package_name(pkg), listener_name(pkg)))
+        if revision > 0:
+            imports.append("%s.%s" % (package_name(pkg), added_name(pkg)))
+        imports.extend("%s.%s" % (package_name(pkg), class_name(pkg, cls))
+                       for cls in range(classes))
+    for i in sorted(imports):
+        corpus.add("import %s;" % i)
+    corpus.add("")
+
+    # ApiDoclet sorts packages and classes by name, so p10 comes before p2
+    for pkg in sorted(range(packages), key=package_name):
+        corpus.add("package %s {" % package_name(pkg))
+        corpus.add("")
+        if revision > 0:
+            _added_class(corpus, pkg)
+        for cls in sorted(range(classes), key=lambda c: class_name(pkg, c)):
+            _class(corpus, pkg, cls, pkg * classes + cls, depth, generic_nesting, revision)
+        _listener(corpus, pkg)
+        corpus.add("}")
+        corpus.add("")
+
+    return corpus
+
+def shape(size):
+    """Packages and classes per package for an API of about size classes."""
+    packages = max(1, size // 100)
+    return (packages, max(1, size // packages))
+
+def write(corpus, path):
+    with open(path, "w", encoding="UTF-8") as f:
+        f.write(corpus.text())
+    with open(path + ".map", "w", encoding="UTF-8") as f:
+        f.write(corpus.map_text())
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="Generates a synthetic api.txt file and its map.")
+    parser.add_argument("output", help="api.txt file to write, the map is written next to it")
+    parser.add_argument("--classes", type=int, default=1000,
+                        help="Approximate number of classes")
+    parser.add_argument("--depth", type=int, default=4,
+                        help="Length of the extends chains")
+    parser.add_argument("--generic-nesting", type=int, default=3,
+                        help="Nesting of the generic types in method signatures")
+    parser.add_argument("--revision", type=int, default=0, choices=[0, 1],
+                        help="1 generates a later version of the API with changes from 0")
+    args = parser.parse_args()
+
+    packages, classes = shape(args.classes)
+    write(generate(packages, classes, args.depth, args.generic_nesting, args.revision),
+          args.output)
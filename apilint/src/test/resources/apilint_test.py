@@ -20,8 +20,58 @@ ERROR_CODES = {
 
 parser = argparse.ArgumentParser(description="Tests for apilint.py.")
 parser.add_argument("--build-dir", help="Build directory location")
+parser.add_argument("--lint-server", action='store_true',
+                    help="Also run every test through lint-server.py and check that "
+                         "the results are identical to the command line.")
+parser.add_argument("--class-cache", help="Also run every test twice with this --class-cache "
+                                           "directory and check that the results are identical "
+                                           "to the run without it.")
 args = parser.parse_args()
 
+server = None
+if args.lint_server:
+    server = sp.Popen(["python3", "src/main/resources/lint-server.py"],
+                      stdin=sp.PIPE, stdout=sp.PIPE, text=True)
+
+def check_lint_server(test, json_file, error_code, json_result):
+    cli = sp.run(test, capture_output=True, text=True)
+
+    server.stdin.write(json.dumps({
+        "script": os.path.abspath(test[1]),
+        "args": test[2:],
+        "cwd": os.getcwd(),
+    }) + "\n")
+    server.stdin.flush()
+    response = json.loads(server.stdout.readline())
+
+    with open(json_file) as f:
+        server_result = json.load(f)
+
+    if (response["exit"] != cli.returncode or response["exit"] != error_code
+            or response["stdout"] != cli.stdout or server_result != json_result):
+        print("lint-server.py result differs from the command line:")
+        print(json.dumps(response, indent=2))
+        print(json.dumps(server_result, indent=2))
+        sys.exit(1)
+
+def check_class_cache(test, json_file, error_code, json_result):
+    cli = sp.run(test, capture_output=True, text=True)
+
+    # The first run fills the cache, the second one reads it
+    for i in range(2):
+        cached = sp.run(test + ["--class-cache", args.class_cache],
+                        capture_output=True, text=True)
+        with open(json_file) as f:
+            cached_result = json.load(f)
+
+        if (cached.returncode != error_code or cached.stdout != cli.stdout
+                or cached_result != json_result):
+            print("--class-cache result differs from the run without it:")
+            print(cached.stdout)
+            print(cached.stderr)
+            print(json.dumps(cached_result, indent=2))
+            sys.exit(1)
+
 with open(TEST_DIR + "tests.json") as f:
     tests = json.load(f)
 
@@ -77,6 +127,12 @@ for t in tests:
 
     print(json.dumps(json_result, indent=2))
 
+    if server is not None:
+        check_lint_server(test, json_file, error_code, json_result)
+
+    if args.class_cache is not None:
+        check_class_cache(test, json_file, error_code, json_result)
+
     expected_error_code = ERROR_CODES[t["expected"]]
     if error_code != expected_error_code:
          print("The following test is expected to fail with {} "
@@ -1,16 +1,27 @@
 import unittest
+import contextlib
 import sys
 import os
+import glob
+import io
+import json
+import struct
+import subprocess
+import tempfile
+from unittest import mock
 
 sys.path.append(os.path.join(os.path.dirname(__file__), '../../main/resources/'))
 
+import apilint
 from apilint import collect_chunks
 from apilint import Type
+from tokenizer_benchmark import legacy_collect_chunks
+import api_corpus
 
 class ApilintUnittest(unittest.TestCase):
     def collect_chunks(self, search, separator, expected):
-        self.assertEqual(collect_chunks(search, separator, len(separator)),
-                         expected)
+        self.assertEqual(collect_chunks(search, separator), expected)
+        self.assertEqual(legacy_collect_chunks(search, separator), expected)
 
     def test_collect_chunks(self):
         self.collect_chunks("T extends F", "extends", ["T", "F"])
@@ -18,6 +29,30 @@ class ApilintUnittest(unittest.TestCase):
         self.collect_chunks("java.lang.Map<T extends F, H extends G>", "extends", ["java.lang.Map<T extends F, H extends G>"])
         self.collect_chunks("public <T>", " ", ["public", "<T>"])
 
+    def test_collect_chunks_same_as_legacy(self):
+        lines = [
+            "",
+            "   ",
+            "a  b\t c ",
+            "a, ,b",
+            ",a,",
+            "a>b, c",
+            "Map<K, V>, (int a, int b), c",
+            "T extends F & G",
+            "java.util.Map<T extends F, H extends G> extends Base",
+            "    method public <T extends java.lang.Runnable> void run(@NonNull T, int);",
+            "    field public static final java.lang.String A = \"a b; c\";",
+            "@Anno(value=\"a, b\", other={1, 2})",
+        ]
+        for line in lines:
+            for separator in [r"\s", r"[\s;]", ",", "&", "extends", r"\."]:
+                self.assertEqual(collect_chunks(line, separator),
+                                 legacy_collect_chunks(line, separator),
+                                 "%r split at %r" % (line, separator))
+                for start, end in [(1, -1), (3, None), (-4, None), (5, 2)]:
+                    self.assertEqual(collect_chunks(line, separator, start, end),
+                                     legacy_collect_chunks(line, separator, start, end))
+
     def test_type_extends(self):
         typ = Type(None, None, "java.lang.Map<T extends F>", None, None, {})
 
@@ -103,5 +138,723 @@ class ApilintUnittest(unittest.TestCase):
         self.assertEqual(typ.generics[0].generics[1].generics[0].name, "G")
         self.assertEqual(typ.generics[0].generics[1].generics[1].name, "H")
 
+    def test_class_nested_generic(self):
+        text = """package a.b {
+
+  public class Foo<T extends java.lang.Comparable<T>> {
+  }
+
+  public class Bar<K, V> extends a.b.Foo<K> {
+  }
+
+}
+"""
+        api = apilint._parse_stream(io.StringIO(text), None)
+        self.assertEqual(sorted(api.keys()), ["a.b.Bar", "a.b.Foo"])
+        self.assertEqual(len(api["a.b.Foo"].generics), 1)
+        self.assertEqual(len(api["a.b.Bar"].generics), 2)
+
+class ModelCacheUnittest(unittest.TestCase):
+    API = os.path.join(os.path.dirname(__file__),
+                       "apilint_test/test-nullable-void-method-missing-nullable-arg.txt")
+
+    def examine(self, cache_dir):
+        with open(self.API) as f:
+            failures, noticed, api = apilint.examine_stream_cached(f, None, cache_dir)
+        return ({k: (repr(v), repr(v.clazz), repr(v.detail)) for k, v in failures.items()},
+                sorted(noticed.keys()),
+                {k: [repr(m) for m in c.methods] for k, c in api.items()})
+
+    def test_cached_model_is_identical(self):
+        expected = self.examine(None)
+        with tempfile.TemporaryDirectory() as cache_dir:
+            # The first run writes the cache, the second one reads it
+            self.assertEqual(self.examine(cache_dir), expected)
+            self.assertEqual(len(os.listdir(cache_dir)), 1)
+            self.assertEqual(self.examine(cache_dir), expected)
+
+    def test_corrupted_cache_entry(self):
+        expected = self.examine(None)
+        with tempfile.TemporaryDirectory() as cache_dir:
+            self.examine(cache_dir)
+            entry = os.path.join(cache_dir, os.listdir(cache_dir)[0])
+            with open(entry, "wb") as f:
+                f.write(b"corrupted")
+            self.assertEqual(self.examine(cache_dir), expected)
+
+    def test_entries_pruned_concurrently(self):
+        with tempfile.TemporaryDirectory() as cache_dir:
+            for i in range(3):
+                open(os.path.join(cache_dir, "%d.pickle" % i), "wb").close()
+            remove = os.remove
+            def remove_twice(path):
+                # Another run pruned the same entry first
+                remove(path)
+                remove(path)
+            with mock.patch.object(apilint.os, "remove", remove_twice):
+                apilint.prune_cache(cache_dir, 1)
+            self.assertEqual(len(os.listdir(cache_dir)), 1)
+
+class ApiMapUnittest(unittest.TestCase):
+    TEXT_MAP = [
+        "\n",
+        "org/mozilla/Test.java:10:1\n",
+        "org/mozilla/Test.java:12:5\n",
+        "\n",
+        "c:/with:colon/Other.java:3:14\n",
+        "org/mozilla/\U0001F600.java:7:3\n",
+    ]
+
+    def write_binary_map(self, f):
+        files = ["org/mozilla/Test.java", "c:/with:colon/Other.java", "org/mozilla/\U0001F600.java"]
+        entries = [(-1, 0, 0), (0, 10, 1), (0, 12, 5), (-1, 0, 0), (1, 3, 14), (2, 7, 3)]
+        f.write(struct.pack(">iii", 0x41504d42, 2, len(files)))
+        for name in files:
+            encoded = name.encode("UTF-8")
+            f.write(struct.pack(">i", len(encoded)) + encoded)
+        f.write(struct.pack(">i", len(entries)))
+        for entry in entries:
+            f.write(struct.pack(">iii", *entry))
+
+    def locations(self, api_map):
+        return [repr(apilint.read_map(api_map, line)) for line in range(1, 9)]
+
+    def test_binary_map_same_as_text(self):
+        with tempfile.TemporaryDirectory() as folder:
+            binary = os.path.join(folder, "api.txt.map.bin")
+            with open(binary, "wb") as f:
+                self.write_binary_map(f)
+            text = os.path.join(folder, "api.txt.map")
+            with open(text, "w", encoding="UTF-8") as f:
+                f.writelines(self.TEXT_MAP)
+
+            binary_map = apilint.load_api_map(binary)
+            self.assertIsInstance(binary_map, apilint.BinaryApiMap)
+            self.assertEqual(apilint.load_api_map(text), self.TEXT_MAP)
+            self.assertEqual(self.locations(binary_map), self.locations(self.TEXT_MAP))
+            self.assertEqual(apilint.read_map(binary_map, 2).line, 10)
+
+class JobsUnittest(unittest.TestCase):
+    API = os.path.join(os.path.dirname(__file__),
+                       "../../../../apidoc-plugin/src/test/resources/expected-doclet-output.txt")
+
+    def examine(self, text, jobs):
+        failures, noticed, api = apilint.examine_stream(io.StringIO(text), None, jobs)
+        return ([(sig, repr(f), f.json(), repr(f.clazz), repr(f.detail))
+                 for sig, f in failures.items()],
+                [(name, repr(c)) for name, c in noticed.items()],
+                list(api.keys()))
+
+    def test_jobs_same_as_sequential(self):
+        with open(self.API) as f:
+            text = f.read()
+        # Copies of the same classes, so that failures with the same sig are
+        # found by different workers
+        text = text + text.replace("package ", "package copy.") + text
+
+        expected = self.examine(text, 1)
+        self.assertGreater(len(expected[0]), 0)
+        self.assertEqual(self.examine(text, 3), expected)
+
+    def test_jobs_without_fork(self):
+        with open(self.API) as f:
+            text = f.read()
+        expected = self.examine(text, 1)
+
+        stderr = io.StringIO()
+        with mock.patch.object(apilint.multiprocessing, "get_all_start_methods",
+                               return_value=["spawn"]), contextlib.redirect_stderr(stderr):
+            self.assertEqual(self.examine(text, 3), expected)
+        self.assertIn("--jobs needs the fork start method", stderr.getvalue())
+
+class RulesUnittest(unittest.TestCase):
+    ANDROID_API = """package android.os {
+
+  public class FooService extends android.app.Service {
+    method public void doThing();
+  }
+
+  public class Stub extends android.os.Binder {
+  }
+
+  public final class Thing implements java.lang.Runnable android.os.Parcelable {
+    method public boolean equals(java.lang.Object);
+    method public android.app.Activity getActivity();
+  }
+
+  public abstract class Outer.Inner {
+  }
+
+}
+"""
+
+    def apis(self):
+        folder = os.path.dirname(__file__)
+        for path in glob.glob(os.path.join(folder, "apilint_test", "*.txt")) + [JobsUnittest.API]:
+            with open(path) as f:
+                yield f.read()
+        yield self.ANDROID_API
+
+    def test_preconditions_never_skip_failures(self):
+        for text in self.apis():
+            for clazz in apilint._parse_stream(io.StringIO(text), None).values():
+                facts = apilint.ClassFacts(clazz)
+                for rule in apilint.RULES:
+                    preconditions = getattr(rule, "preconditions", [])
+                    if all(p(facts) for p in preconditions):
+                        continue
+                    apilint.failures = {}
+                    rule(clazz)
+                    self.assertEqual(apilint.failures, {},
+                                     "%s skipped on %s" % (rule.__name__, clazz.fullname))
+
+    def test_class_facts(self):
+        api = apilint._parse_stream(io.StringIO(self.ANDROID_API), None)
+        facts = apilint.ClassFacts(api["android.os.Thing"])
+        self.assertEqual(facts.supertypes, {"java.lang.Runnable", "android.os.Parcelable"})
+        self.assertEqual(facts.modifiers, {"public", "final"})
+        self.assertEqual(facts.kind, "class")
+        self.assertTrue(facts.has_member("equals"))
+        self.assertTrue(facts.has_member_prefix("get"))
+        self.assertFalse(facts.has_member("get"))
+
+    def test_layering(self):
+        failures, noticed, api = apilint.examine_stream(io.StringIO(self.ANDROID_API), None)
+        messages = set((f.clazz.name, f.msg) for f in failures.values())
+        self.assertIn(("Thing", "Method return type violates package layering"), messages)
+
+    def test_resolved_supertypes(self):
+        text = """package org.example {
+
+  public class Stub extends android.os.Binder {
+  }
+
+  public final class Thing implements java.lang.Runnable android.os.Parcelable {
+  }
+
+  public class Connection extends android.app.ServiceConnection {
+  }
+
+  public class MissingValue extends java.lang.EnumConstantNotPresentException {
+  }
+
+}
+"""
+        failures, noticed, api = apilint.examine_stream(io.StringIO(text), None)
+        messages = set((f.clazz.name, f.msg) for f in failures.values())
+        self.assertIn(("Stub", "Raw AIDL interfaces must not be exposed"), messages)
+        # Parcelable is not the first interface, which a raw string test missed
+        self.assertIn(("Thing", "Parcelable requires CREATOR, writeToParcel, and describeContents; missing one"),
+                      messages)
+        # Not a prefix match of android.app.Service
+        self.assertNotIn(("Connection", "Inconsistent class name; should be FooService"), messages)
+        # Nor of java.lang.Enum
+        self.assertNotIn(("MissingValue", "Enums are not allowed"), messages)
+
+    def test_abstract_inner(self):
+        text = """package org.example {
+
+  abstract class Outer.Inner {
+  }
+
+  public static abstract class Outer.Nested {
+  }
+
+}
+"""
+        failures, noticed, api = apilint.examine_stream(io.StringIO(text), None)
+        messages = [(f.clazz.name, f.msg) for f in failures.values()]
+        # The class line has no leading space for " abstract " to match
+        self.assertEqual(messages,
+                         [("Inner", "Abstract inner classes should be static to improve testability")])
+
+class ProfileUnittest(unittest.TestCase):
+    def setUp(self):
+        with open(JobsUnittest.API) as f:
+            text = f.read()
+        self.text = text + text.replace("package ", "package copy.")
+
+    def tearDown(self):
+        apilint.PROFILE = None
+
+    def examine(self, jobs):
+        apilint.PROFILE = apilint.Profile()
+        failures, noticed, api = apilint.examine_stream(io.StringIO(self.text), None, jobs)
+        return [(sig, f.json()) for sig, f in failures.items()], apilint.PROFILE
+
+    def test_profile_does_not_change_results(self):
+        expected = JobsUnittest().examine(self.text, 1)[0]
+        failures, profile = self.examine(1)
+        self.assertEqual(failures, [(sig, json) for sig, _, json, _, _ in expected])
+
+    def test_profile_with_jobs(self):
+        failures, profile = self.examine(1)
+        parallel_failures, parallel_profile = self.examine(3)
+        self.assertEqual(parallel_failures, failures)
+
+        calls = lambda table: {name: calls for name, (calls, _) in table.items()}
+        self.assertEqual(calls(parallel_profile.rules), calls(profile.rules))
+        self.assertEqual(sorted(n for _, n in parallel_profile.classes),
+                         sorted(n for _, n in profile.classes))
+
+        metrics = parallel_profile.json()
+        self.assertEqual(metrics['classes']['count'], len(profile.classes))
+        self.assertEqual(metrics['phases']['examine_clazz']['calls'], len(profile.classes))
+        self.assertLessEqual(len(metrics['classes']['slowest']), apilint.Profile.SLOWEST_CLASSES)
+
+    def test_dump_metrics_json(self):
+        apilint.PROFILE = apilint.Profile()
+        with tempfile.TemporaryFile("w+") as f:
+            json.dump({'failures': [], 'metrics': [{'mode': 'single'}]}, f)
+            apilint.dump_metrics_json({'result_json': f}, "compat")
+            f.seek(0)
+            results = json.load(f)
+        self.assertEqual([m['mode'] for m in results['metrics']], ["single", "compat"])
+        self.assertEqual(results['failures'], [])
+
+class ApiCorpusUnittest(unittest.TestCase):
+    def test_generate_is_deterministic(self):
+        first = api_corpus.generate(3, 12, revision=1)
+        second = api_corpus.generate(3, 12, revision=1)
+        self.assertEqual(first.text(), second.text())
+        self.assertEqual(first.map, second.map)
+
+    def test_generated_api_parses(self):
+        corpus = api_corpus.generate(3, 12, depth=4)
+        self.assertEqual(len(corpus.lines), len(corpus.map))
+        api = apilint._parse_stream(io.StringIO(corpus.text()), corpus.map)
+        # 12 classes and a listener in each package
+        self.assertEqual(len(api), 3 * 13)
+
+        clazz = api["org.mozilla.bench.p2.P2C7"]
+        self.assertEqual(clazz.extends.name, "org.mozilla.bench.p2.P2C6")
+        self.assertEqual(clazz.location.fileName, "org/mozilla/bench/p2/P2C7.java")
+        previous = [m for m in clazz.methods if m.name.startswith("previous")][0]
+        self.assertEqual(previous.typ.name, "org.mozilla.bench.p1.P1C7")
+
+    def test_revisions_are_incompatible(self):
+        prev = apilint._parse_stream(io.StringIO(api_corpus.generate(2, 20).text()), None)
+        cur = apilint._parse_stream(
+            io.StringIO(api_corpus.generate(2, 20, revision=1).text()), None)
+        self.assertEqual(len(cur), len(prev) + 2)
+        with contextlib.redirect_stdout(io.StringIO()):
+            self.assertGreater(len(apilint.verify_compat(cur, prev)), 0)
+
+class VariantsUnittest(unittest.TestCase):
+    SCRIPT = os.path.join(os.path.dirname(__file__), '../../main/resources/apilint.py')
+
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.previous = self.write("previous.txt", api_corpus.generate(2, 10))
+        # debug and release have the same API, beta has more classes
+        for name, classes in [("debug", 10), ("release", 10), ("beta", 12)]:
+            self.write(name + ".txt", api_corpus.generate(2, classes, revision=1))
+
+    def tearDown(self):
+        self.dir.cleanup()
+
+    def path(self, name):
+        return os.path.join(self.dir.name, name)
+
+    def write(self, name, corpus):
+        api_corpus.write(corpus, self.path(name))
+        return self.path(name)
+
+    def run_apilint(self, args):
+        return subprocess.run([sys.executable, self.SCRIPT, "--no-color"] + args,
+                              stdout=subprocess.PIPE, universal_newlines=True).returncode
+
+    def variants(self, suffix):
+        variants = []
+        for name in ["debug", "release", "beta"]:
+            api = self.path(name + ".txt")
+            variants.append({"name": name + "-single", "args": [
+                api, "--api-map", api + ".map", "--filter-errors", "GV", "--no-color",
+                "--result-json", self.path(name + "-single" + suffix)]})
+            variants.append({"name": name + "-compat", "args": [
+                api, self.previous, "--show-noticed", "--filter-errors", "GV", "--no-color",
+                "--result-json", self.path(name + "-compat" + suffix)]})
+        return variants
+
+    def read(self, name):
+        with open(self.path(name)) as f:
+            return json.load(f)
+
+    def test_variants_same_as_separate_runs(self):
+        expected_codes = [self.run_apilint(v["args"]) for v in self.variants(".json")]
+
+        manifest = self.path("variants.json")
+        with open(manifest, "w") as f:
+            json.dump(self.variants(".variants.json"), f)
+        code = self.run_apilint(["--variants", manifest,
+                                 "--result-json", self.path("aggregate.json")])
+
+        self.assertEqual(code, 131)
+        self.assertIn(131, expected_codes)
+
+        aggregate = self.read("aggregate.json")
+        for variant, expected_code in zip(aggregate["variants"], expected_codes):
+            name = variant["name"]
+            self.assertEqual(variant["exit"], expected_code)
+            self.assertEqual(self.read(name + ".variants.json"), self.read(name + ".json"))
+            self.assertEqual(variant["result"], self.read(name + ".json"))
+
+        same_as = {v["name"]: v["same_as"] for v in aggregate["variants"]}
+        self.assertEqual(same_as, {
+            "debug-single": None, "release-single": "debug-single", "beta-single": None,
+            "debug-compat": None, "release-compat": "debug-compat", "beta-compat": None,
+        })
+        self.assertTrue(aggregate["failure"])
+
+    def test_variants_options_not_inherited(self):
+        api = os.path.join(os.path.dirname(__file__),
+                           "apilint_test/test-deprecated-method-present.txt")
+        args = [api, "--filter-errors", "GV", "--allowed-packages", "test", "java",
+                "--deprecation-annotation", "test.DeprecationSchedule"]
+        # Only the first group knows the library version, which makes GV10 fail
+        variants = [
+            {"name": "versioned", "args": args + ["--library-version", "65",
+                "--result-json", self.path("versioned.variants.json")]},
+            {"name": "unversioned", "args": args + [
+                "--result-json", self.path("unversioned.variants.json")]},
+        ]
+        manifest = self.path("variants.json")
+        with open(manifest, "w") as f:
+            json.dump(variants, f)
+        self.run_apilint(["--variants", manifest,
+                          "--result-json", self.path("aggregate.json")])
+        unversioned_code = self.run_apilint(
+                args + ["--result-json", self.path("unversioned.json")])
+
+        aggregate = self.read("aggregate.json")
+        self.assertEqual([v["same_as"] for v in aggregate["variants"]], [None, None])
+        versioned, unversioned = aggregate["variants"]
+        self.assertIn("GV10", [f["rule"] for f in versioned["result"]["failures"]])
+        self.assertEqual(unversioned["exit"], unversioned_code)
+        self.assertEqual(unversioned["result"], self.read("unversioned.json"))
+        self.assertEqual(self.read("unversioned.variants.json"), self.read("unversioned.json"))
+
+class StructuralDiffUnittest(unittest.TestCase):
+    PREVIOUS = """package org.example {
+
+  public class Foo {
+    ctor public Foo();
+    method public int bar();
+    method public void baz(int);
+    field public static final int CONSTANT = 1;
+  }
+
+  public class Gone {
+  }
+
+}
+"""
+
+    CURRENT = """package org.example {
+
+  public final class Foo {
+    ctor public Foo();
+    method public void baz(int);
+    method @Deprecated public int bar();
+    method public void qux();
+    field public static final int CONSTANT = 1;
+  }
+
+}
+"""
+
+    def parse(self, text, api_map=None):
+        return apilint._parse_stream(io.StringIO(text), api_map)
+
+    def test_identical_apis(self):
+        corpus = api_corpus.generate(2, 10).text()
+        diff = apilint.structural_diff(self.parse(corpus), self.parse(corpus))
+        self.assertEqual(diff, {'added': [], 'removed': [], 'changed': []})
+
+    def test_members_matched_by_ident(self):
+        diff = apilint.structural_diff(self.parse(self.CURRENT), self.parse(self.PREVIOUS))
+
+        self.assertEqual([(e['kind'], e['member']) for e in diff['added']],
+                         [('method', 'method public void qux()')])
+        self.assertEqual([(e['kind'], e['member']) for e in diff['removed']],
+                         [('class', 'public class Gone')])
+        self.assertEqual([(e['kind'], e['member'], e['previous']) for e in diff['changed']], [
+            ('class', 'public final class Foo', 'public class Foo'),
+            ('method', 'method @Deprecated public int bar()', 'method public int bar()'),
+        ])
+
+    def test_corpus_revisions(self):
+        prev = api_corpus.generate(2, 20)
+        cur = api_corpus.generate(2, 20, revision=1)
+        diff = apilint.structural_diff(self.parse(cur.text(), cur.map),
+                                       self.parse(prev.text()))
+
+        added = [(e['class'], e['kind']) for e in diff['added']]
+        self.assertIn(("org.mozilla.bench.p0.P0Added", 'class'), added)
+        self.assertIn(("org.mozilla.bench.p1.P1C1", 'method'), added)
+        removed = [(e['class'], e['member']) for e in diff['removed']]
+        self.assertIn(("org.mozilla.bench.p0.P0C6", "method @Deprecated public void deprecated6()"),
+                      removed)
+        for entry in diff['added']:
+            self.assertTrue(entry['file'].endswith(entry['class'].split(".")[-1] + ".java"))
+
+class StreamingCompatUnittest(unittest.TestCase):
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.prev = os.path.join(self.dir.name, "previous.txt")
+        self.cur = os.path.join(self.dir.name, "current.txt")
+        api_corpus.write(api_corpus.generate(3, 20), self.prev)
+        api_corpus.write(api_corpus.generate(3, 20, revision=1), self.cur)
+
+    def tearDown(self):
+        self.dir.cleanup()
+
+    def failures(self, verify, *args):
+        with contextlib.redirect_stdout(io.StringIO()):
+            return {k: v.json() for k, v in verify(*args).items()}
+
+    def check_same_as_parsed(self, cur, prev):
+        api_map = apilint.load_api_map(cur + ".map")
+        with open(cur) as f:
+            cur_api = apilint._parse_stream(f, api_map)
+        with open(prev) as f:
+            prev_api = apilint._parse_stream(f, api_map)
+
+        expected = self.failures(apilint.verify_compat, cur_api, prev_api)
+        self.assertEqual(self.failures(apilint.verify_compat_streaming, cur, prev, api_map),
+                         expected)
+        return expected
+
+    def test_same_as_parsed(self):
+        self.assertGreater(len(self.check_same_as_parsed(self.cur, self.prev)), 0)
+        self.assertGreater(len(self.check_same_as_parsed(self.prev, self.cur)), 0)
+        self.assertEqual(len(self.check_same_as_parsed(self.prev, self.prev)), 0)
+
+    def reversed_copy(self, path):
+        """Writes path with its packages and classes in reverse order, the map
+        lines move with their lines."""
+        with open(path) as f:
+            lines = f.read().splitlines()
+        with open(path + ".map") as f:
+            locations = f.read().splitlines()
+        pairs = list(zip(lines, locations + [""] * (len(lines) - len(locations))))
+        header = []
+        packages = []
+        for pair in pairs:
+            text = pair[0]
+            if text.startswith("package"):
+                packages.append((pair, []))
+            elif not packages:
+                header.append(pair)
+            elif apilint._is_class_line(text):
+                packages[-1][1].append([pair])
+            elif text.startswith("    ") or text == "  }":
+                packages[-1][1][-1].append(pair)
+        result = list(header)
+        for pkg, classes in reversed(packages):
+            result.append(pkg)
+            for clazz in reversed(classes):
+                result.extend(clazz + [("", "")])
+            result.append(("}", ""))
+            result.append(("", ""))
+
+        reversed_path = path + ".reversed.txt"
+        with open(reversed_path, "w") as f:
+            f.write("".join(text + "\n" for text, _ in result))
+        with open(reversed_path + ".map", "w") as f:
+            f.write("".join(location + "\n" for _, location in result))
+        return reversed_path
+
+    def test_classes_out_of_order(self):
+        # Classes are looked up by name, the order of the files does not matter.
+        # The previous API is read with the map of the current one, so only the
+        # failed members are the same as with the files in order.
+        expected = self.check_same_as_parsed(self.cur, self.prev).keys()
+        cur = self.reversed_copy(self.cur)
+        self.assertEqual(self.check_same_as_parsed(cur, self.prev).keys(), expected)
+        prev = self.reversed_copy(self.prev)
+        self.assertEqual(self.check_same_as_parsed(self.cur, prev).keys(), expected)
+        self.assertEqual(self.check_same_as_parsed(cur, prev).keys(), expected)
+
+    def test_classes_evicted_from_cache(self):
+        cache_size = apilint.IndexedApi.CACHE_SIZE
+        apilint.IndexedApi.CACHE_SIZE = 1
+        try:
+            self.check_same_as_parsed(self.cur, self.prev)
+        finally:
+            apilint.IndexedApi.CACHE_SIZE = cache_size
+
+    def test_parse_fullname(self):
+        pkg = apilint.Package(None, "package org.example {", None)
+        for raw in ["  public class Foo<T extends java.lang.Comparable<T>> {",
+                    "  public static interface Foo.Bar {",
+                    "  public final enum Baz {"]:
+            clazz = apilint.Class(pkg, None, raw, None, {})
+            self.assertEqual(apilint.Class.parse_fullname(pkg, raw), clazz.fullname)
+
+class IncrementalLintUnittest(unittest.TestCase):
+    SCRIPT = os.path.join(os.path.dirname(__file__), '../../main/resources/apilint.py')
+
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.cache = os.path.join(self.dir.name, "cache")
+        self.prev = os.path.join(self.dir.name, "previous.txt")
+        self.cur = os.path.join(self.dir.name, "current.txt")
+        api_corpus.write(api_corpus.generate(3, 20), self.prev)
+        api_corpus.write(api_corpus.generate(3, 20, revision=1), self.cur)
+
+    def tearDown(self):
+        self.dir.cleanup()
+
+    def run_apilint(self, args):
+        result = os.path.join(self.dir.name, "result.json")
+        process = subprocess.run([sys.executable, self.SCRIPT, "--no-color", "--result-json", result]
+                                 + args + ["--filter-errors", ""],
+                                 stdout=subprocess.PIPE, universal_newlines=True)
+        with open(result) as f:
+            return (process.returncode, process.stdout, json.load(f))
+
+    def test_same_as_whole_api(self):
+        for args in [[self.cur], [self.cur, "--allowed-packages", "org.mozilla.bench", "java"],
+                     [self.cur, self.prev, "--show-noticed"], [self.prev, self.cur, "--show-noticed"],
+                     [self.prev, self.prev, "--show-noticed"]]:
+            args += ["--api-map", args[0] + ".map"]
+            expected = self.run_apilint(args)
+            # Once to fill the cache, once reading it
+            self.assertEqual(self.run_apilint(args + ["--class-cache", self.cache]), expected)
+            self.assertEqual(self.run_apilint(args + ["--class-cache", self.cache]), expected)
+
+    def examined(self, cur, prev):
+        examined = []
+        examine_class = apilint._examine_class
+        def record(clazz, allowed_packages):
+            examined.append(clazz.fullname)
+            return examine_class(clazz, allowed_packages)
+        apilint._examine_class = record
+        try:
+            apilint.lint_incremental(cur, prev, None, self.cache, None)
+        finally:
+            apilint._examine_class = examine_class
+        return examined
+
+    def test_only_changed_classes_examined(self):
+        self.assertEqual(len(self.examined(self.cur, None)), 3 * 22)
+        self.assertEqual(self.examined(self.cur, None), [])
+
+        before = os.path.join(self.dir.name, "before.txt")
+        os.rename(self.cur, before)
+        with open(before) as f, open(self.cur, "w") as out:
+            for line in f:
+                out.write(line.replace("public int count();", "public long count();"))
+
+        # The classes of before are in the cache already
+        changed = self.examined(self.cur, before)
+        self.assertGreater(len(changed), 0)
+        self.assertLess(len(changed), 3 * 22)
+        self.assertEqual(self.examined(self.cur, None), [])
+
+class AppendJsonUnittest(unittest.TestCase):
+    SCRIPT = os.path.join(os.path.dirname(__file__), '../../main/resources/apilint.py')
+    FOLDER = os.path.join(os.path.dirname(__file__), "apilint_test")
+
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.result = os.path.join(self.dir.name, "result.json")
+
+    def tearDown(self):
+        self.dir.cleanup()
+
+    def run_apilint(self, name, args=[]):
+        subprocess.run([sys.executable, self.SCRIPT, os.path.join(self.FOLDER, name),
+                        "--no-color", "--result-json", self.result] + args,
+                       stdout=subprocess.PIPE, universal_newlines=True)
+        with open(self.result) as f:
+            return json.load(f)
+
+    def test_keeps_previous_results(self):
+        first = self.run_apilint("test-built-in-types-allowed.txt")["failures"]
+        second = self.run_apilint("test-enum-annotations.txt")["failures"]
+        self.assertGreater(len(first), 0)
+        self.assertGreater(len(second), 0)
+
+        self.run_apilint("test-built-in-types-allowed.txt")
+        appended = self.run_apilint("test-enum-annotations.txt", ["--append-json"])
+        self.assertEqual(len(appended["failures"]), len(first) + len(second))
+        self.assertTrue(appended["failure"])
+
+class ResultStreamUnittest(unittest.TestCase):
+    SCRIPT = os.path.join(os.path.dirname(__file__), '../../main/resources/apilint.py')
+
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.prev = self.path("previous.txt")
+        self.cur = self.path("current.txt")
+        api_corpus.write(api_corpus.generate(2, 10), self.prev)
+        api_corpus.write(api_corpus.generate(2, 10, revision=1), self.cur)
+        self.runs = [
+            [self.cur, "--api-map", self.cur + ".map", "--filter-errors", "GV", "--no-color"],
+            [self.cur, self.prev, "--show-noticed", "--filter-errors", "GV", "--no-color"],
+            [self.cur, self.prev, "--streaming-compat", "--no-color"],
+        ]
+
+    def tearDown(self):
+        self.dir.cleanup()
+
+    def path(self, name):
+        return os.path.join(self.dir.name, name)
+
+    def run_apilint(self, args):
+        return subprocess.run([sys.executable, self.SCRIPT] + args,
+                              stdout=subprocess.PIPE, universal_newlines=True).returncode
+
+    def read(self, name):
+        with open(self.path(name)) as f:
+            return json.load(f)
+
+    def test_merged_same_as_append_json(self):
+        for args in self.runs:
+            expected = self.run_apilint(args + ["--result-json", self.path("appended.json"),
+                                                "--append-json"])
+            self.assertEqual(self.run_apilint(args + ["--result-ndjson", self.path("results.ndjson")]),
+                             expected)
+
+        with open(self.path("results.ndjson")) as f:
+            self.assertTrue(all(len(json.loads(line)) == 1 for line in f))
+        self.assertEqual(self.run_apilint(["--merge-results", self.path("results.ndjson"),
+                                           "--result-json", self.path("merged.json")]), 0)
+        merged = self.read("merged.json")
+        self.assertEqual(merged, self.read("appended.json"))
+        self.assertGreater(len(merged["failures"]), 0)
+        self.assertGreater(len(merged["compat_failures"]), 0)
+
+    def test_merge_shards_and_result_json(self):
+        shards = []
+        for index, args in enumerate(self.runs):
+            shards.append(self.path("%d.ndjson" % index))
+            self.run_apilint(args + ["--result-ndjson", shards[-1]])
+            self.run_apilint(args + ["--result-json", self.path("appended.json"), "--append-json"])
+        # A result JSON is one line with all the lists
+        self.run_apilint(self.runs[0] + ["--result-json", self.path("single.json")])
+        self.run_apilint(self.runs[0] + ["--result-json", self.path("appended.json"), "--append-json"])
+
+        self.run_apilint(["--merge-results"] + shards + [self.path("single.json"),
+                          "--result-json", self.path("merged.json")])
+        self.assertEqual(self.read("merged.json"), self.read("appended.json"))
+
+    def test_variants(self):
+        variants = [{"name": name, "args": self.runs[0] + ["--result-ndjson", self.path(name + ".ndjson")]}
+                    for name in ["debug", "release"]]
+        with open(self.path("variants.json"), "w") as f:
+            json.dump(variants, f)
+        self.run_apilint(["--variants", self.path("variants.json"),
+                          "--result-json", self.path("aggregate.json")])
+        self.run_apilint(self.runs[0] + ["--result-json", self.path("single.json")])
+
+        for variant in self.read("aggregate.json")["variants"]:
+            self.run_apilint(["--merge-results", self.path(variant["name"] + ".ndjson"),
+                              "--result-json", self.path("merged.json")])
+            self.assertEqual(self.read("merged.json"), self.read("single.json"))
+            self.assertEqual(variant["result"], self.read("single.json"))
+
 if __name__ == '__main__':
     unittest.main()
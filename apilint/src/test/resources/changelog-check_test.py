@@ -2,6 +2,7 @@
 # License, v. 2.0. If a copy of the MPL was not distributed with this
 # file, You can obtain one at http://mozilla.org/MPL/2.0/.
 
+import hashlib
 import json
 import os
 import subprocess as sp
@@ -43,6 +44,15 @@ class ChangelogCheckTest(unittest.TestCase):
             self.assertEqual(result['failures'][0]['rule'], ERROR_CODE_MAP[expected])
             self.assertEqual(result['failures'][0]['error'], True)
 
+        # The stream only has the failures, one per line
+        ndjson_file = tempfile.NamedTemporaryFile(mode='w+', encoding='UTF-8')
+        test[-2:] = ["--result-ndjson", ndjson_file.name]
+        with open(os.devnull, 'w') as devnull:
+            sp.call(test, stdout=devnull)
+
+        records = [json.loads(line) for line in ndjson_file]
+        self.assertEqual(records, [{"failures": f} for f in result['failures']])
+
     def test_changelogWithRightVersionNoError(self):
         self.t("changelog-with-right-version.md", "api-changelog.txt", OK_CODE)
 
@@ -52,5 +62,32 @@ class ChangelogCheckTest(unittest.TestCase):
     def test_changelogWrongVersionError(self):
         self.t("changelog-with-wrong-version.md", "api-changelog.txt", OUT_OF_DATE_CODE)
 
+    def fingerprint(self, text):
+        fingerprint_file = tempfile.NamedTemporaryFile(mode='w', encoding='UTF-8', suffix=".sha1")
+        fingerprint_file.write(text)
+        fingerprint_file.flush()
+        return fingerprint_file
+
+    def check_fingerprint(self, api, fingerprint_file, expected):
+        test = ["python3", "src/main/resources/changelog-check.py",
+                "--changelog-file", "{}/changelog-with-right-version.md".format(FOLDER),
+                "--api-file", "{}/{}".format(FOLDER, api),
+                "--api-fingerprint", fingerprint_file]
+        with open(os.devnull, 'w') as devnull:
+            self.assertEqual(sp.call(test, stdout=devnull), expected)
+
+    def test_fingerprintUsedInsteadOfApiFile(self):
+        with open("{}/api-changelog.txt".format(FOLDER), "rb") as f:
+            sha1 = hashlib.sha1(f.read()).hexdigest()
+        with self.fingerprint(sha1 + "\n") as f:
+            # The API file is not read, or the version would not match
+            self.check_fingerprint("changelog-without-version.md", f.name, OK_CODE)
+
+    def test_invalidFingerprintIgnored(self):
+        with self.fingerprint("not a sha1\n") as f:
+            self.check_fingerprint("api-changelog.txt", f.name, OK_CODE)
+            self.check_fingerprint("changelog-without-version.md", f.name, OUT_OF_DATE_CODE)
+        self.check_fingerprint("api-changelog.txt", "{}/missing.sha1".format(FOLDER), OK_CODE)
+
 if __name__ == "__main__":
     unittest.main()
@@ -0,0 +1,128 @@
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+# Measures how apilint scales with the size of the API, on synthetic APIs
+# generated by api_corpus.py, and writes the timings as JSON so that they can
+# be compared between commits.
+
+import argparse
+import contextlib
+import io
+import json
+import os
+import platform
+import subprocess
+import sys
+import tempfile
+import time
+
+sys.path.append(os.path.join(os.path.dirname(__file__), '../../main/resources/'))
+
+import apilint
+import api_corpus
+
+def git_revision():
+    try:
+        return subprocess.check_output(["git", "rev-parse", "HEAD"],
+            cwd=os.path.dirname(os.path.abspath(__file__)),
+            stderr=subprocess.DEVNULL, universal_newlines=True).strip()
+    except (OSError, subprocess.CalledProcessError):
+        return None
+
+def measure(fn):
+    """Runs fn with apilint's output discarded, returns (seconds, result)."""
+    apilint.failures = {}
+    with contextlib.redirect_stdout(io.StringIO()):
+        start = time.perf_counter()
+        result = fn()
+        elapsed = time.perf_counter() - start
+    return (elapsed, result)
+
+def parse(text, api_map):
+    return apilint._parse_stream(io.StringIO(text), api_map)
+
+def run(size, depth, generic_nesting, jobs):
+    packages, classes = api_corpus.shape(size)
+    prev = api_corpus.generate(packages, classes, depth, generic_nesting, revision=0)
+    cur = api_corpus.generate(packages, classes, depth, generic_nesting, revision=1)
+    prev_text, prev_map = prev.text(), prev.map
+    cur_text, cur_map = cur.text(), cur.map
+
+    result = {
+        "classes": packages * classes,
+        "packages": packages,
+        "lines": len(cur.lines),
+        "timings": {},
+        "failures": {},
+    }
+
+    def record(name, seconds, failures):
+        result["timings"][name] = round(seconds, 4)
+        result["failures"][name] = len(failures)
+        print("%8d classes  %-28s %9.3fs  %6d failures" %
+              (result["classes"], name, seconds, len(failures)), file=sys.stderr)
+
+    seconds, (failures, _, cur_api) = measure(
+        lambda: apilint.examine_stream(io.StringIO(cur_text), cur_map, jobs))
+    record("examine_stream", seconds, failures)
+
+    _, (_, _, prev_api) = measure(
+        lambda: apilint.examine_stream(io.StringIO(prev_text), prev_map, jobs))
+    seconds, failures = measure(lambda: apilint.verify_compat(cur_api, prev_api))
+    record("verify_compat", seconds, failures)
+
+    # Includes the parsing, which verify_compat gets for free from examine_stream
+    with tempfile.TemporaryDirectory() as directory:
+        cur_path = os.path.join(directory, "current.txt")
+        prev_path = os.path.join(directory, "previous.txt")
+        api_corpus.write(cur, cur_path)
+        api_corpus.write(prev, prev_path)
+        api_map = apilint.load_api_map(cur_path + ".map")
+        seconds, failures = measure(
+            lambda: apilint.verify_compat_streaming(cur_path, prev_path, api_map))
+    record("verify_compat_streaming", seconds, failures)
+
+    allowed = [api_corpus.ROOT_PACKAGE, "java.lang"]
+    seconds, _ = measure(lambda: apilint.verify_packages(cur_api, allowed))
+    record("verify_packages", seconds, apilint.failures)
+
+    # show_deprecations_at_birth modifies the current API, so it gets its own copy
+    cur_api = parse(cur_text, cur_map)
+    prev_api = parse(prev_text, prev_map)
+    seconds, _ = measure(lambda: apilint.show_deprecations_at_birth(cur_api, prev_api))
+    record("show_deprecations_at_birth", seconds, apilint.failures)
+
+    return result
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="Benchmarks apilint on synthetic APIs of growing size.")
+    parser.add_argument("--sizes", type=int, nargs='+', default=[1000, 10000, 100000],
+                        help="Number of classes of each API")
+    parser.add_argument("--depth", type=int, default=4,
+                        help="Length of the extends chains")
+    parser.add_argument("--generic-nesting", type=int, default=3,
+                        help="Nesting of the generic types in method signatures")
+    parser.add_argument("--jobs", type=int, default=1,
+                        help="Passed to examine_stream")
+    parser.add_argument("--output", help="JSON file to write the results to, stdout by default")
+    args = parser.parse_args()
+
+    apilint.USE_COLOR = False
+
+    results = {
+        "revision": git_revision(),
+        "python": platform.python_version(),
+        "platform": platform.platform(),
+        "depth": args.depth,
+        "generic_nesting": args.generic_nesting,
+        "jobs": args.jobs,
+        "runs": [run(size, args.depth, args.generic_nesting, args.jobs) for size in args.sizes],
+    }
+
+    if args.output:
+        with open(args.output, "w", encoding="UTF-8") as f:
+            json.dump(results, f, indent=2, sort_keys=True)
+            f.write("\n")
+    else:
+        print(json.dumps(results, indent=2, sort_keys=True))
@@ -0,0 +1,83 @@
+# This Source Code Form is subject to the terms of the Mozilla Public
+# License, v. 2.0. If a copy of the MPL was not distributed with this
+# file, You can obtain one at http://mozilla.org/MPL/2.0/.
+
+# Compares the time it takes to parse an api.txt file with the single pass
+# tokenizer in apilint.py and with the implementation it replaced.
+
+import argparse
+import io
+import os
+import re
+import sys
+import time
+
+sys.path.append(os.path.join(os.path.dirname(__file__), '../../main/resources/'))
+
+import apilint
+
+# The implementation of collect_chunks before chunk_spans, kept as reference.
+def legacy_collect_chunks(line, separator, start=0, end=None):
+    separator_len = len("extends") if separator == "extends" else 1
+    chunks = []
+    unparsed = line[start:end].strip()
+    while unparsed != "":
+        chunk, unparsed = legacy_find_next_chunk(unparsed, separator, separator_len)
+        unparsed = unparsed.strip()
+        chunks.append(chunk.strip())
+    return chunks
+
+def legacy_find_next_chunk(unparsed, separator, separator_len=1):
+    caret = 0
+    parens = 0
+    for i in range(1, len(unparsed) + 1):
+        if unparsed[i-1] == '<':
+            caret += 1
+        elif unparsed[i-1] == '>':
+            caret -= 1
+        elif unparsed[i-1] == '(':
+            parens += 1
+        elif unparsed[i-1] == ')':
+            parens -= 1
+        elif (i >= separator_len and
+                re.match(separator, unparsed[i-separator_len:i]) and
+                caret == 0 and parens == 0):
+            return (unparsed[0:i-separator_len], unparsed[i:].strip())
+    # only one chunk
+    return (unparsed, "")
+
+def parse(text, collect_chunks):
+    apilint.collect_chunks = collect_chunks
+    start = time.perf_counter()
+    api = apilint._parse_stream(io.StringIO(text), None)
+    return (time.perf_counter() - start, api)
+
+def idents(api):
+    return {name: [m.ident for m in c.methods] + [f.ident for f in c.fields]
+            for name, c in api.items()}
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="Benchmarks the api.txt tokenizer.")
+    parser.add_argument("api", help="api.txt file to parse")
+    parser.add_argument("--scale", type=int, default=1000,
+                        help="Number of times the api file is repeated")
+    args = parser.parse_args()
+
+    with open(args.api, encoding='UTF-8') as f:
+        text = f.read()
+
+    # Rename the packages of each copy so that no class is overwritten
+    copies = [text.replace("package ", "package copy%d." % i) for i in range(args.scale)]
+    text = "".join(copies)
+
+    tokenizer = apilint.collect_chunks
+    legacy_time, legacy_api = parse(text, legacy_collect_chunks)
+    tokenizer_time, tokenizer_api = parse(text, tokenizer)
+
+    if idents(legacy_api) != idents(tokenizer_api):
+        print("ERROR: the tokenizer and the legacy implementation disagree.")
+        sys.exit(1)
+
+    print("Parsed %d lines, %d classes" % (text.count("\n"), len(tokenizer_api)))
+    print("legacy:    %8.3fs" % legacy_time)
+    print("tokenizer: %8.3fs (%.1fx)" % (tokenizer_time, legacy_time / tokenizer_time))